@@ -0,0 +1,135 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A bare-bones stand-in for JMH (which needs a build to generate its harness): every benchmark gets its own JVM,
+ * a few warmup iterations, then a few measured ones, each calling the benchmark in a loop for a fixed amount
+ * of time. What the calls return is summed into a volatile field, so the JIT can't drop the work as dead code.
+ *
+ * Usage: Benchmarks [warmup=3] [iterations=5] [seconds=1] [fork=true] [names...]
+ * where the names pick the benchmarks whose names contain any of them (default all of them)
+ */
+public class Bench {
+
+	public interface Op {
+		/**
+		 * One call of whatever's being measured.
+		 *
+		 * @param i counts up from 0, to cycle through the fixtures with
+		 * @return anything that depends on the work done
+		 */
+		long run(int i) throws Exception;
+	}
+
+	// timing every call would cost more than some of the calls themselves, so the clock is only checked once
+	// a batch of calls has taken at least this long
+	private static final long MIN_CHECK_NANOS = 10_000;
+	private static final int MAX_CALLS_PER_CHECK = 1 << 16;
+
+	static volatile long sink;
+
+	// the class whose main() sets the benchmarks up, so they can be set up again in a fresh JVM
+	private final Class<?> mainClass;
+	private final Map<String, Op> benchmarks = new LinkedHashMap<>();
+
+	public Bench(Class<?> mainClass) {
+		this.mainClass = mainClass;
+	}
+
+	public void add(String name, Op op) {
+		benchmarks.put(name, op);
+	}
+
+	public void run(String[] args) throws Exception {
+		int warmup = 3;
+		int iterations = 5;
+		double seconds = 1;
+		boolean fork = true;
+		List<String> names = new ArrayList<>();
+		for (String arg : args) {
+			String[] keyValue = arg.split("=", 2);
+			if (keyValue.length == 1) {
+				names.add(arg);
+			} else if (keyValue[0].equals("warmup")) {
+				warmup = Integer.parseInt(keyValue[1]);
+			} else if (keyValue[0].equals("iterations")) {
+				iterations = Integer.parseInt(keyValue[1]);
+			} else if (keyValue[0].equals("seconds")) {
+				seconds = Double.parseDouble(keyValue[1]);
+			} else if (keyValue[0].equals("fork")) {
+				fork = Boolean.parseBoolean(keyValue[1]);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+
+		for (Map.Entry<String, Op> benchmark : benchmarks.entrySet()) {
+			String name = benchmark.getKey();
+			if (!names.isEmpty() && names.stream().noneMatch(name::contains)) {
+				continue;
+			}
+			if (fork) {
+				// a fresh JVM, so the JIT's profile of the shared loop below is only ever of this one benchmark
+				List<String> command = new ArrayList<>();
+				command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+				command.add("-cp");
+				command.add(System.getProperty("java.class.path"));
+				command.add(mainClass.getName());
+				command.add("warmup=" + warmup);
+				command.add("iterations=" + iterations);
+				command.add("seconds=" + seconds);
+				command.add("fork=false");
+				command.add(name);
+				int exit = new ProcessBuilder(command).inheritIO().start().waitFor();
+				if (exit != 0) {
+					throw new IllegalStateException(name + " failed");
+				}
+			} else if (names.contains(name)) {
+				measure(name, benchmark.getValue(), warmup, iterations, (long) (seconds * 1e9));
+			}
+		}
+	}
+
+	private static void measure(String name, Op op, int warmup, int iterations, long iterationNanos)
+			throws Exception {
+		double[] nanosPerCall = new double[iterations];
+		int i = 0;
+		int callsPerCheck = 1;
+		for (int iteration = -warmup; iteration < iterations; iteration++) {
+			long result = 0;
+			long nCalls = 0;
+			long start = System.nanoTime();
+			long elapsed = 0;
+			do {
+				for (int call = 0; call < callsPerCheck; call++) {
+					result += op.run(i++);
+				}
+				nCalls += callsPerCheck;
+				long previous = elapsed;
+				elapsed = System.nanoTime() - start;
+				if (elapsed - previous < MIN_CHECK_NANOS && callsPerCheck < MAX_CALLS_PER_CHECK) {
+					callsPerCheck *= 2;
+				}
+			} while (elapsed < iterationNanos);
+			sink += result;
+			if (iteration >= 0) {
+				nanosPerCall[iteration] = (double) elapsed / nCalls;
+			}
+		}
+
+		double mean = 0;
+		for (double nanos : nanosPerCall) {
+			mean += nanos / iterations;
+		}
+		double variance = 0;
+		for (double nanos : nanosPerCall) {
+			variance += (nanos - mean) * (nanos - mean) / Math.max(1, iterations - 1);
+		}
+		System.out.println(String.format(Locale.ROOT, "%-45s %14.1f ns/op +- %8.1f %14.0f ops/s", name, mean,
+				Math.sqrt(variance), 1e9 / mean));
+	}
+}
@@ -0,0 +1,183 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Microbenchmarks for the hot paths of matching and writing reads, over realistic fixtures: plates of 96, 384 and
+ * 1536 barcodes of up to 8 bases, and 150 base reads, either clean or with errors in the barcode and overhang.
+ * See Bench for the options.
+ */
+public class Benchmarks {
+
+	private static final int[] PLATE_SIZES = {96, 384, 1536};
+	private static final String[] MATCHERS = {"compiled", "kmer", "tree"};
+	private static final String[] OVERHANGS = {"CAGC", "CTGC"};
+	private static final int READ_LEN = 150;
+	// a power of 2, so the fixtures can be cycled through with a mask
+	private static final int N_READS = 1 << 12;
+	// the longest line ReusingBufferedReader is given room for
+	private static final int MAX_LINE_LEN = 400;
+	// roughly what a NovaSeq's binned quality scores look like
+	private static final String QUALITIES = "FFFFFFFFFFFFFFFFFFFF:::,";
+
+	public static void main(String[] args) throws Exception {
+		Bench bench = new Bench(Benchmarks.class);
+		for (int nBarcodes : PLATE_SIZES) {
+			List<String> barcodes = GenerateTestData.barcodes(nBarcodes, new Random(nBarcodes));
+			addMatching(bench, barcodes);
+			Set<String> barcodeSet = new HashSet<>(barcodes);
+			bench.add("getMinEditDistance/" + nBarcodes, i -> CopyBarcodes.getMinEditDistance(barcodeSet));
+		}
+		addReading(bench);
+		addWriting(bench);
+		bench.run(args);
+	}
+
+	private static void addMatching(Bench bench, List<String> barcodes) throws Exception {
+		Random rand = new Random(barcodes.size() + 1);
+		byte[][] clean = new byte[N_READS][];
+		byte[][] errors = new byte[N_READS][];
+		byte[][] qualities = new byte[N_READS][];
+		for (int i = 0; i < N_READS; i++) {
+			clean[i] = read(barcodes.get(rand.nextInt(barcodes.size())), rand).getBytes(StandardCharsets.US_ASCII);
+			qualities[i] = quality(rand).getBytes(StandardCharsets.US_ASCII);
+			// one or two bases off in the barcode and overhang, with the quality there low enough to fix them
+			errors[i] = clean[i].clone();
+			for (int nErrors = 1 + rand.nextInt(2); nErrors > 0; nErrors--) {
+				int pos = rand.nextInt(12);
+				errors[i][pos] = (byte) "ACGTN".charAt(rand.nextInt(5));
+				qualities[i][pos] = '#';
+			}
+		}
+
+		int nBarcodes = barcodes.size();
+		for (String matcherType : MATCHERS) {
+			PrefixTree tree = tree(barcodes, matcherType);
+			if (matcherType.equals("tree")) {
+				bench.add("findBarcodeLen/" + nBarcodes, i -> tree.findBarcodeLen(clean[i & (N_READS - 1)]));
+			}
+			BarcodeMatcher matcher = tree.newMatcher();
+			bench.add("fuzzyMatchId/" + matcherType + "/" + nBarcodes + "/clean",
+					i -> matcher.fuzzyMatchId(clean[i & (N_READS - 1)], qualities[i & (N_READS - 1)]));
+			bench.add("fuzzyMatchId/" + matcherType + "/" + nBarcodes + "/errors",
+					i -> matcher.fuzzyMatchId(errors[i & (N_READS - 1)], qualities[i & (N_READS - 1)]));
+		}
+	}
+
+	private static void addReading(Bench bench) {
+		Random rand = new Random(1);
+		StringBuilder fastq = new StringBuilder();
+		for (int i = 0; i < N_READS; i++) {
+			fastq.append(header(i, 1)).append('\n').append(read("ACGT", rand)).append("\n+\n").append(quality(rand))
+					.append('\n');
+		}
+		String text = fastq.toString();
+		byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+
+		char[] chars = new char[MAX_LINE_LEN];
+		ReusingBufferedReader[] charReader = {new ReusingBufferedReader(new StringReader(text))};
+		bench.add("readLine/ReusingBufferedReader", i -> {
+			int len = charReader[0].readLine(chars);
+			if (len == 0) {
+				// start over once the fixture runs out
+				charReader[0] = new ReusingBufferedReader(new StringReader(text));
+			}
+			return len;
+		});
+
+		// a record at a time into a batch's slab, as the tools read them
+		ReadBatch batch = new ReadBatch();
+		ByteFastqReader[] byteReader = {new ByteFastqReader(new ByteArrayInputStream(bytes))};
+		bench.add("readRecord/ByteFastqReader", i -> {
+			if (batch.isFull()) {
+				batch.clear();
+			}
+			Read read = batch.next();
+			if (!byteReader[0].readRecord(batch, read, 0)) {
+				byteReader[0] = new ByteFastqReader(new ByteArrayInputStream(bytes));
+				return 0;
+			}
+			batch.keep();
+			return read.lineLens[1];
+		});
+
+		Read[] reads = reads(rand);
+		bench.add("checkHeaders", i -> CopyBarcodes.checkHeaders(reads[i & (N_READS - 1)], false) ? 1 : 0);
+	}
+
+	private static void addWriting(Bench bench) throws Exception {
+		Read[] reads = reads(new Random(2));
+		File dir = Files.createTempDirectory("bench").toFile();
+		String pop = new File(dir, "bench").getPath();
+		OutputFile[] out = {null};
+		bench.add("OutputFile.write", i -> {
+			// start over every so often, so the files don't take up the whole disk
+			if ((i & ((1 << 18) - 1)) == 0) {
+				if (out[0] != null) {
+					out[0].close();
+				}
+				out[0] = new OutputFile(pop, "sample", false, false);
+				out[0].open();
+			}
+			out[0].write(reads[i & (N_READS - 1)], 12);
+			return out[0].getNumWritten();
+		});
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}));
+	}
+
+	private static PrefixTree tree(List<String> barcodes, String matcherType) throws Exception {
+		PrefixTree tree = new PrefixTree(Config.loadOptions(new String[] {"minQuality=F", "overhang=CAGC,CTGC",
+				"matcher=" + matcherType}));
+		for (String barcode : barcodes) {
+			tree.addBarcode(barcode);
+		}
+		return tree;
+	}
+
+	private static Read[] reads(Random rand) {
+		Read[] reads = new Read[N_READS];
+		for (int i = 0; i < N_READS; i++) {
+			reads[i] = Read.of(header(i, 1), read("ACGT", rand), "+", quality(rand),
+					header(i, 2), bases(rand, READ_LEN), "+", quality(rand));
+		}
+		return reads;
+	}
+
+	private static String header(int i, int direction) {
+		return "@A00589:100:HLKHHDMXX:1:1101:" + (1000 + i % 30000) + ":" + (1000 + i / 30000) + " " + direction
+				+ ":N:0:GACTAGGAGC+TAGTACAGGC";
+	}
+
+	private static String read(String barcode, Random rand) {
+		String start = barcode + OVERHANGS[rand.nextInt(OVERHANGS.length)];
+		return start + bases(rand, READ_LEN - start.length());
+	}
+
+	private static String quality(Random rand) {
+		StringBuilder quality = new StringBuilder();
+		for (int i = 0; i < READ_LEN; i++) {
+			quality.append(QUALITIES.charAt(rand.nextInt(QUALITIES.length())));
+		}
+		return quality.toString();
+	}
+
+	private static String bases(Random rand, int len) {
+		StringBuilder bases = new StringBuilder();
+		for (int i = 0; i < len; i++) {
+			bases.append("ACGT".charAt(rand.nextInt(4)));
+		}
+		return bases.toString();
+	}
+}
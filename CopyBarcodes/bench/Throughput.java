@@ -0,0 +1,181 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs CopyBarcodes, Demultiplexer, Downsampler and TruncateReads end to end over a data set from GenerateTestData,
+ * each in a JVM of its own, and reports their reads and (compressed input) MB per second, peak resident memory
+ * and time spent in GC.
+ *
+ * Usage: Throughput [discardOutput=true|false] [tools=CopyBarcodes,Demultiplexer,...] [GenerateTestData options...]
+ * discardOutput throws the output away instead of compressing and writing it, to show how fast the tools could
+ * possibly go (default false). The data set is generated in the directory option (default throughput), unless
+ * it's already there.
+ */
+public class Throughput {
+
+	private static final String RESULT = "throughput:";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("measure")) {
+			measure(args[1], Arrays.copyOfRange(args, 2, args.length));
+			return;
+		}
+
+		boolean discardOutput = false;
+		List<String> tools = Arrays.asList("CopyBarcodes", "Demultiplexer", "Downsampler", "TruncateReads");
+		List<String> generatorArgs = new ArrayList<>();
+		generatorArgs.add("directory=throughput");
+		for (String arg : args) {
+			if (arg.startsWith("discardOutput=")) {
+				discardOutput = Boolean.parseBoolean(arg.substring(arg.indexOf('=') + 1));
+			} else if (arg.startsWith("tools=")) {
+				tools = Arrays.asList(arg.substring(arg.indexOf('=') + 1).split(","));
+			} else {
+				generatorArgs.add(arg);
+			}
+		}
+		GenerateTestData data = GenerateTestData.loadOptions(generatorArgs.toArray(new String[0]));
+		if (!new File(data.getBarcodeFile()).exists()) {
+			System.out.println("Generating " + data.nReads + " reads in " + data.directory);
+			data.generate();
+		}
+
+		System.out.println(String.format(Locale.ROOT, "%-15s %10s %10s %12s %8s %12s %10s", "tool", "reads", "seconds",
+				"reads/s", "MB/s", "peak RSS MB", "GC ms"));
+		for (String tool : tools) {
+			String[] toolArgs = writeConfig(tool, data, discardOutput);
+			long inputBytes = 0;
+			for (String file : getInputFiles(tool, data)) {
+				inputBytes += new File(file).length();
+			}
+			long nReads = isFirstLaneOnly(tool) ? data.nReads / data.nFiles + (data.nReads % data.nFiles > 0 ? 1 : 0)
+					: data.nReads;
+
+			String[] result = fork(data.directory, tool, toolArgs);
+			double seconds = Long.parseLong(result[0]) / 1000.0;
+			System.out.println(String.format(Locale.ROOT, "%-15s %10d %10.1f %12.0f %8.1f %12d %10s", tool, nReads,
+					seconds, nReads / seconds, inputBytes / 1e6 / seconds, Long.parseLong(result[1]) / 1024, result[2]));
+		}
+	}
+
+	// Downsampler only takes one pair of files, and TruncateReads is only given the first forward file
+	private static boolean isFirstLaneOnly(String tool) {
+		return tool.equals("Downsampler") || tool.equals("TruncateReads");
+	}
+
+	private static List<String> getInputFiles(String tool, GenerateTestData data) {
+		if (tool.equals("TruncateReads")) {
+			return data.getForwardFiles().subList(0, 1);
+		} else if (isFirstLaneOnly(tool)) {
+			return Arrays.asList(data.getForwardFiles().get(0), data.getReverseFiles().get(0));
+		}
+		List<String> files = new ArrayList<>(data.getForwardFiles());
+		files.addAll(data.getReverseFiles());
+		return files;
+	}
+
+	private static String[] writeConfig(String tool, GenerateTestData data, boolean discardOutput) throws Exception {
+		File config = new File(data.directory, tool + ".config");
+		try (PrintWriter out = new PrintWriter(config)) {
+			if (tool.equals("TruncateReads")) {
+				out.println("file=" + new File(data.getForwardFiles().get(0)).getName());
+				out.println("max_read_length=100");
+				out.println("barcode_length=0");
+				out.println("discard_output=" + discardOutput);
+			} else {
+				out.println("minQuality=:");
+				out.println("overhang=CAGC,CTGC");
+				out.println("barcodeFile=" + new File(data.getBarcodeFile()).getName());
+				List<String> files = getInputFiles(tool, data);
+				out.println("sourceFileForward=" + names(files.subList(0, files.size() / 2)));
+				out.println("sourceFileReverse=" + names(files.subList(files.size() / 2, files.size())));
+				out.println("population=throughput");
+				out.println("percentToRetain=50");
+				out.println("discardOutput=" + discardOutput);
+			}
+		}
+		return new String[] {config.getName()};
+	}
+
+	private static String names(List<String> files) {
+		List<String> names = new ArrayList<>();
+		for (String file : files) {
+			names.add(new File(file).getName());
+		}
+		return String.join(",", names);
+	}
+
+	// runs the tool in the data set's directory, returning its run time, peak RSS and GC time
+	private static String[] fork(File directory, String tool, String[] toolArgs) throws Exception {
+		List<String> command = new ArrayList<>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-cp");
+		command.add(absolute(System.getProperty("java.class.path")));
+		command.add(Throughput.class.getName());
+		command.add("measure");
+		command.add(tool);
+		command.addAll(Arrays.asList(toolArgs));
+		Process process = new ProcessBuilder(command).directory(directory).redirectErrorStream(true).start();
+
+		String[] result = null;
+		try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+			String line;
+			while ((line = out.readLine()) != null) {
+				if (line.startsWith(RESULT)) {
+					result = line.substring(RESULT.length()).trim().split(" ");
+				}
+			}
+		}
+		if (process.waitFor() != 0 || result == null) {
+			throw new IllegalStateException(tool + " failed");
+		}
+		return result;
+	}
+
+	// the tool runs in another directory, so the class path can't be relative to this one
+	private static String absolute(String classPath) {
+		List<String> paths = new ArrayList<>();
+		for (String path : classPath.split(File.pathSeparator)) {
+			paths.add(new File(path).getAbsolutePath());
+		}
+		return String.join(File.pathSeparator, paths);
+	}
+
+	// in the forked JVM: runs the tool's main(), and reports once it's done - even if it calls System.exit()
+	private static void measure(String tool, String[] toolArgs) throws Exception {
+		long start = System.currentTimeMillis();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			long elapsed = System.currentTimeMillis() - start;
+			long gcMillis = 0;
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				gcMillis += Math.max(0, gc.getCollectionTime());
+			}
+			System.out.println(RESULT + " " + elapsed + " " + getPeakRssKb() + " " + gcMillis);
+		}));
+		Class.forName(tool).getMethod("main", String[].class).invoke(null, (Object) toolArgs);
+	}
+
+	// the high water mark of the resident set, from /proc (so only on Linux)
+	private static long getPeakRssKb() {
+		try {
+			for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+				if (line.startsWith("VmHWM:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", ""));
+				}
+			}
+		} catch (Exception e) {
+			// not available
+		}
+		return -1;
+	}
+}
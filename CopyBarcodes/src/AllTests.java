@@ -3,8 +3,12 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
-@SuiteClasses({ByteBasedProgressTrackerTest.class, ConfigTest.class, CopyBarcodesTest.class,
-	DemultiplexerTest.class, DownsamplerTest.class, PrefixTreeTest.class, TruncateReadsTest.class})
+@SuiteClasses({ByteBasedProgressTrackerTest.class, ByteFastqReaderTest.class, CompiledBarcodeMatcherTest.class,
+	ConfigTest.class, CopyBarcodesTest.class, DemultiplexerTest.class, DownsamplerTest.class,
+	GenerateTestDataTest.class, KmerBarcodeIndexTest.class, OutputFilePoolTest.class,
+	ParallelGzipInputStreamTest.class, ParallelGzipOutputStreamTest.class, PipelineMetricsTest.class,
+	PipelineTest.class, PrefixTreeTest.class, ReservoirSampleTest.class, RetainByNameHashTest.class,
+	RingBufferTest.class, TruncateReadsTest.class})
 public class AllTests {
 
 }
@@ -0,0 +1,26 @@
+// Finds the barcode at the start of a read, identified by the id PrefixTree.addBarcode gave it.
+// Matchers keep scratch state between calls, so each matching thread needs its own - get one from PrefixTree.newMatcher()
+public interface BarcodeMatcher {
+	
+	// returned by findBarcodeId when the read doesn't start with a barcode
+	int NO_MATCH = -1;
+	// returned by fuzzyMatchId, depending on why a read couldn't be fixed
+	int SKIPPED_DUPLICATE = -2; // changing a base would give more than one barcode
+	int SKIPPED_QUALITY = -3; // the mismatch is in a base read with a high quality score
+	int SKIPPED_MULTIPLE_BAD_READS = -4; // more than one base is off
+	
+	// the id of the barcode (and overhang) the read, starting at offset in buf, starts with, or NO_MATCH
+	int findBarcodeId(byte[] buf, int offset);
+	
+	// the id of the barcode the read matches when allowing one low-quality base to be wrong, or one of the (negative) SKIPPED_ reasons.
+	// The read and its quality scores are usually lines of the same slab (see ReadBatch)
+	int fuzzyMatchId(byte[] read, int readOffset, byte[] quality, int qualityOffset);
+	
+	default int findBarcodeId(byte[] read) {
+		return findBarcodeId(read, 0);
+	}
+	
+	default int fuzzyMatchId(byte[] read, byte[] quality) {
+		return fuzzyMatchId(read, 0, quality, 0);
+	}
+}
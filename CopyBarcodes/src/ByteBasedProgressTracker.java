@@ -1,5 +1,7 @@
 import java.io.PrintStream;
+import java.util.Locale;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
 public class ByteBasedProgressTracker implements ProgressTracker {
 
@@ -11,7 +13,13 @@ public class ByteBasedProgressTracker implements ProgressTracker {
 	private final long updateInterval;
 	private long lastWritten = 0;
 	private final PrintStream out;
+	// how much of the compressed input has been read, null if progress is estimated from the number of reads instead
+	private final LongSupplier bytesRead;
+	private final long totalBytes;
+	private final long startTime = System.nanoTime();
+	private long lastBytesRead = 0;
 	
+	// estimates the number of reads in numBytes of compressed input (see GZIP_READ_PER_KB)
 	public ByteBasedProgressTracker(long numBytes) {
 		this(numBytes, System.out);
 	}
@@ -20,21 +28,63 @@ public class ByteBasedProgressTracker implements ProgressTracker {
 		expected = Math.max(1, (numBytes / 1024) * GZIP_READ_PER_KB);
 		updateInterval = expected / PERCENT_TO_TWO_DECIMALS;
 		this.out = out;
+		this.bytesRead = null;
+		this.totalBytes = numBytes;
+	}
+	
+	/**
+	 * Tracks progress through the actual input: bytesRead should count the compressed bytes read so far
+	 * (see CountingInputStream), out of totalBytes in all the input files.
+	 */
+	public ByteBasedProgressTracker(long totalBytes, LongSupplier bytesRead) {
+		this(totalBytes, bytesRead, System.out);
+	}
+	
+	public ByteBasedProgressTracker(long totalBytes, LongSupplier bytesRead, PrintStream out) {
+		expected = 0;
+		updateInterval = 0;
+		this.out = out;
+		this.bytesRead = bytesRead;
+		this.totalBytes = Math.max(1, totalBytes);
 	}
 	
 	@Override
 	public void noteProgress() {
 		numWritten.incrementAndGet();
 	}
+	
+	@Override
+	public void noteProgress(int nReads) {
+		numWritten.addAndGet(nReads);
+	}
 
 	@Override
 	public void printProgress() {
 		long current = numWritten.get();
-		if ((current - lastWritten) > updateInterval) {
+		if (bytesRead != null) {
+			printByteProgress(current);
+		} else if ((current - lastWritten) > updateInterval) {
 			// use int math to get percent to two decimal places, then convert to an actual decimal
 			double percent = (current * PERCENT_TO_TWO_DECIMALS / expected) / 100.0;
 			out.println("Processed roughly " + percent + " percent (" + current + " reads)");
 		}
 	}
-
+	
+	private void printByteProgress(long nReads) {
+		long read = bytesRead.getAsLong();
+		if (read == lastBytesRead) {
+			return; // nothing new to report
+		}
+		lastBytesRead = read;
+		double seconds = Math.max(1e-3, (System.nanoTime() - startTime) / 1e9);
+		double bytesPerSecond = read / seconds;
+		long secondsLeft = (long) (Math.max(0, totalBytes - read) / bytesPerSecond);
+		out.println(String.format(Locale.ROOT, "Processed %.2f percent (%d reads, %d reads/s, %.1f MB/s), %s left",
+				Math.min(100.0, read * 100.0 / totalBytes), nReads, (long) (nReads / seconds), 
+				bytesPerSecond / (1024 * 1024), formatDuration(secondsLeft)));
+	}
+	
+	static String formatDuration(long seconds) {
+		return String.format(Locale.ROOT, "%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+	}
 }
@@ -1,4 +1,7 @@
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.junit.jupiter.api.Test;
 
@@ -31,4 +34,29 @@ public class ByteBasedProgressTrackerTest {
 		assert percent >  0;
 		assert percent < 0.5;
 	}
+	
+	@Test
+	public void testByteProgress() {
+		List<String> lines = new ArrayList<>();
+		PrintStream checker = new PrintStream(System.out) {
+			@Override
+			public void println(String str) {
+				lines.add(str);
+			}
+		};
+		LongAdder bytesRead = new LongAdder();
+		ByteBasedProgressTracker tracker = new ByteBasedProgressTracker(4000, bytesRead::sum, checker);
+		tracker.printProgress();
+		assert lines.isEmpty(); // nothing read yet
+		bytesRead.add(1000);
+		tracker.noteProgress(50);
+		tracker.printProgress();
+		assert lines.size() == 1;
+		assert lines.get(0).startsWith("Processed 25.00 percent (50 reads, ");
+		assert lines.get(0).contains(" reads/s, ");
+		assert lines.get(0).contains(" MB/s), ");
+		assert lines.get(0).endsWith(" left");
+		
+		assert ByteBasedProgressTracker.formatDuration(3725).equals("1:02:05");
+	}
 }
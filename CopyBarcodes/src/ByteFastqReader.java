@@ -0,0 +1,121 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Splits FASTQ records straight out of the raw input bytes. FASTQ is plain ASCII, so going through an
+// InputStreamReader (and decoding every byte to a char, only to encode it again on the way out) is wasted work.
+public class ByteFastqReader implements Closeable {
+
+	private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+	private final InputStream in;
+	private final byte[] buf;
+	private int pos = 0;
+	private int limit = 0;
+
+	public ByteFastqReader(InputStream in) {
+		this(in, DEFAULT_BUFFER_SIZE);
+	}
+
+	public ByteFastqReader(InputStream in, int bufferSize) {
+		this.in = in;
+		this.buf = new byte[bufferSize];
+	}
+
+	/**
+	 * Appends the four lines of the next record to batch's slab, as read's lines firstLine to firstLine + 3 (so 0 for
+	 * a forward read, 4 for a reverse one). Lines can be any length, the slab grows to fit them. Missing lines at
+	 * the end of a truncated file are read as empty.
+	 *
+	 * @return false if there are no more records
+	 */
+	public boolean readRecord(ReadBatch batch, Read read, int firstLine) throws IOException {
+		if (!readLine(batch, read, firstLine)) {
+			return false;
+		}
+		for (int line = firstLine + 1; line < firstLine + 4; line++) {
+			if (!readLine(batch, read, line)) {
+				read.lineStarts[line] = batch.slabSize;
+				read.lineLens[line] = 0;
+			}
+		}
+		read.buf = batch.slab;
+		return true;
+	}
+
+	// same as readLine(byte[]), only into the slab
+	private boolean readLine(ReadBatch batch, Read read, int line) throws IOException {
+		int start = batch.slabSize;
+		while (true) {
+			if (pos >= limit && !fill()) {
+				break;
+			}
+			int end = pos;
+			while (end < limit && buf[end] != '\n') {
+				end++;
+			}
+			batch.append(buf, pos, end - pos);
+			if (end < limit) {
+				pos = end + 1;
+				if (batch.slabSize > start && batch.slab[batch.slabSize - 1] == '\r') {
+					batch.slabSize--;
+				}
+				read.lineStarts[line] = start;
+				read.lineLens[line] = batch.slabSize - start;
+				return true;
+			}
+			pos = limit;
+		}
+		read.lineStarts[line] = start;
+		read.lineLens[line] = batch.slabSize - start;
+		return batch.slabSize > start;
+	}
+
+	/**
+	 * Reads a line into readInto, dropping the line terminator (\n or \r\n).
+	 *
+	 * @return the length of the line, or -1 at the end of the input
+	 */
+	public int readLine(byte[] readInto) throws IOException {
+		int len = 0;
+		while (true) {
+			if (pos >= limit && !fill()) {
+				return len == 0 ? -1 : len;
+			}
+			int start = pos;
+			int end = start;
+			while (end < limit && buf[end] != '\n') {
+				end++;
+			}
+			int n = end - start;
+			if (len + n > readInto.length) {
+				throw new IOException("Found a line longer than " + readInto.length + " characters");
+			}
+			System.arraycopy(buf, start, readInto, len, n);
+			len += n;
+			if (end < limit) {
+				pos = end + 1;
+				if (len > 0 && readInto[len - 1] == '\r') {
+					len--;
+				}
+				return len;
+			}
+			pos = limit;
+		}
+	}
+
+	private boolean fill() throws IOException {
+		int n = in.read(buf, 0, buf.length);
+		if (n <= 0) {
+			return false;
+		}
+		pos = 0;
+		limit = n;
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
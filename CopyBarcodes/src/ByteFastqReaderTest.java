@@ -0,0 +1,86 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class ByteFastqReaderTest {
+
+	@Test
+	public void testReadRecords() throws Exception {
+		String fastq = "@read1\nACGT\n+\nFFFF\n@read2\r\nTTTTT\r\n+\r\nFF,FF\r\n@read3\nAC";
+		// a tiny buffer makes lines straddle refills
+		ByteFastqReader reader = new ByteFastqReader(new ByteArrayInputStream(fastq.getBytes(StandardCharsets.US_ASCII)), 3);
+		ReadBatch batch = new ReadBatch(2);
+
+		Read read = batch.next();
+		boolean found = reader.readRecord(batch, read, 0);
+		assert found;
+		assert "@read1".equals(line(read, 0));
+		assert "FFFF".equals(line(read, 3));
+
+		found = reader.readRecord(batch, read, 4);
+		assert found;
+		assert "@read2".equals(line(read, 4));
+		assert "TTTTT".equals(line(read, 5));
+		assert "FF,FF".equals(line(read, 7));
+		batch.keep();
+
+		// truncated record - missing lines come back empty
+		read = batch.next();
+		found = reader.readRecord(batch, read, 0);
+		assert found;
+		assert "AC".equals(line(read, 1));
+		assert read.lineLens[2] == 0 && read.lineLens[3] == 0;
+		// the first read's lines are still there
+		assert "@read1".equals(line(batch.reads[0], 0));
+
+		found = reader.readRecord(batch, batch.next(), 0);
+		assert !found;
+		reader.close();
+	}
+
+	@Test
+	public void testLongReads() throws Exception {
+		// far longer than the slab's room for a read, so it has to grow while the batch is being filled
+		StringBuilder bases = new StringBuilder();
+		for (int i = 0; i < 10_000; i++) {
+			bases.append("ACGT".charAt(i % 4));
+		}
+		String fastq = "@short\nACGT\n+\nFFFF\n@long\n" + bases + "\n+\n" + bases + "\n";
+		ByteFastqReader reader = new ByteFastqReader(new ByteArrayInputStream(fastq.getBytes(StandardCharsets.US_ASCII)));
+		ReadBatch batch = new ReadBatch(3);
+
+		Read first = batch.next();
+		boolean found = reader.readRecord(batch, first, 0);
+		assert found;
+		batch.keep();
+		Read second = batch.next();
+		found = reader.readRecord(batch, second, 0);
+		assert found;
+		batch.keep();
+
+		assert bases.toString().equals(line(second, 1));
+		assert bases.toString().equals(line(second, 3));
+		assert "ACGT".equals(line(first, 1));
+		found = reader.readRecord(batch, batch.next(), 0);
+		assert !found;
+		reader.close();
+	}
+
+	private static String line(Read read, int line) {
+		return new String(read.buf, read.lineStarts[line], read.lineLens[line], StandardCharsets.US_ASCII);
+	}
+
+	@Test
+	public void testLineTooLong() throws Exception {
+		ByteFastqReader reader = new ByteFastqReader(new ByteArrayInputStream("ACGTACGT\n".getBytes(StandardCharsets.US_ASCII)));
+		try {
+			reader.readLine(new byte[4]);
+			assert false;
+		} catch (IOException e) {
+			// expected
+		}
+		reader.close();
+	}
+}
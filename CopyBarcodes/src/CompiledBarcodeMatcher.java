@@ -0,0 +1,156 @@
+import java.util.Arrays;
+
+/**
+ * Matches against a PrefixTree that's been flattened into a transition table: state s goes to
+ * transitions[s * ALPHABET_SIZE + symbol] on the next base (or -1 if there's no barcode that way).
+ * The states are numbered depth first, so walking a barcode mostly stays within a few cache lines,
+ * instead of chasing a pointer and a mostly empty child array for every base.
+ * 
+ * Gives exactly the same results as the tree, including the skip reasons. 
+ * The table is shared between matchers, the only per-matcher state is why the last fuzzy match failed.
+ */
+public class CompiledBarcodeMatcher implements BarcodeMatcher {
+	
+	// in the same order the tree visits its children, so fuzzy matching picks the same barcode when it has a choice
+	static final String ALPHABET = "ACGNT";
+	static final int ALPHABET_SIZE = ALPHABET.length();
+	private static final byte[] SYMBOLS = new byte[256];
+	static {
+		Arrays.fill(SYMBOLS, (byte) -1);
+		for (int i = 0; i < ALPHABET_SIZE; i++) {
+			SYMBOLS[ALPHABET.charAt(i)] = (byte) i;
+		}
+	}
+	
+	private final int[] transitions;
+	private final int[] barcodeIds; // per state, NO_MATCH unless a barcode + overhang ends there
+	private final int[] barcodeLens; // per barcode id
+	private final int maxBarcodeLen;
+	private final char minQuality;
+	// states along the exact part of the current match, indexed by position
+	private final int[] path;
+	
+	private boolean highQuality;
+	private boolean duplicate;
+	
+	CompiledBarcodeMatcher(int[] transitions, int[] barcodeIds, int[] barcodeLens, int maxBarcodeLen, char minQuality) {
+		this.transitions = transitions;
+		this.barcodeIds = barcodeIds;
+		this.barcodeLens = barcodeLens;
+		this.maxBarcodeLen = maxBarcodeLen;
+		this.minQuality = minQuality;
+		this.path = new int[maxBarcodeLen + 1];
+	}
+	
+	// another matcher on the same table, for another thread
+	public CompiledBarcodeMatcher newMatcher() {
+		return new CompiledBarcodeMatcher(transitions, barcodeIds, barcodeLens, maxBarcodeLen, minQuality);
+	}
+	
+	static int symbol(int base) {
+		return SYMBOLS[base & 0xff];
+	}
+	
+	@Override
+	public int findBarcodeId(byte[] read, int offset) {
+		int state = 0;
+		for (int pos = 0; barcodeIds[state] == NO_MATCH; pos++) {
+			if (pos == maxBarcodeLen) { // assume read length is always greater than 12
+				return NO_MATCH;
+			}
+			state = next(state, read[offset + pos]);
+			if (state < 0) {
+				return NO_MATCH;
+			}
+		}
+		return barcodeIds[state];
+	}
+	
+	private int next(int state, byte base) {
+		int symbol = SYMBOLS[base & 0xff];
+		return symbol < 0 ? -1 : transitions[state * ALPHABET_SIZE + symbol];
+	}
+
+	@Override
+	public int fuzzyMatchId(byte[] read, int readOffset, byte[] quality, int qualityOffset) {
+		highQuality = false;
+		duplicate = false;
+		
+		// walk as far as the read matches exactly
+		int state = 0;
+		int depth = 0;
+		while (true) {
+			path[depth] = state;
+			if (barcodeIds[state] != NO_MATCH) {
+				return barcodeIds[state];
+			}
+			if (depth == maxBarcodeLen) {
+				depth--; // the tree doesn't try to fix anything past the longest barcode
+				break;
+			}
+			int next = next(state, read[readOffset + depth]);
+			if (next < 0) {
+				break;
+			}
+			state = next;
+			depth++;
+		}
+		
+		// then, starting from the deepest position (the same order the tree backtracks in), try swapping
+		// a single low quality base. The match has to be unique, except in the overhang - we don't actually
+		// care which overhang it is.
+		for (int pos = depth; pos >= 0; pos--) {
+			if (quality[qualityOffset + pos] >= minQuality) {
+				highQuality = true;
+				continue;
+			}
+			int exactSymbol = symbol(read[readOffset + pos]);
+			int nBarcodesFound = 0;
+			int foundId = NO_MATCH;
+			int base = path[pos] * ALPHABET_SIZE;
+			for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+				// the read's own base was already tried on the way down
+				if (symbol != exactSymbol && transitions[base + symbol] >= 0) {
+					int id = matchRest(transitions[base + symbol], read, readOffset, quality, qualityOffset, pos + 1);
+					if (id >= 0) {
+						foundId = id;
+						if (pos < barcodeLens[id]) {
+							nBarcodesFound++;
+						}
+					}
+				}
+			}
+			if (nBarcodesFound <= 1 && foundId >= 0) {
+				return foundId;
+			} else if (nBarcodesFound > 1) {
+				duplicate = true;
+			}
+		}
+		
+		if (duplicate) {
+			return SKIPPED_DUPLICATE;
+		} else if (highQuality) {
+			return SKIPPED_QUALITY;
+		}
+		return SKIPPED_MULTIPLE_BAD_READS;
+	}
+	
+	// exact match for the rest of the read, after a base has been swapped
+	private int matchRest(int state, byte[] read, int readOffset, byte[] quality, int qualityOffset, int pos) {
+		// same as the tree: when this fails, a high quality base anywhere along the way counts as the reason
+		boolean sawHighQuality = false;
+		for (; barcodeIds[state] == NO_MATCH; pos++) {
+			if (pos == maxBarcodeLen) {
+				highQuality |= sawHighQuality;
+				return NO_MATCH;
+			}
+			sawHighQuality |= quality[qualityOffset + pos] >= minQuality;
+			state = next(state, read[readOffset + pos]);
+			if (state < 0) {
+				highQuality |= sawHighQuality;
+				return NO_MATCH;
+			}
+		}
+		return barcodeIds[state];
+	}
+}
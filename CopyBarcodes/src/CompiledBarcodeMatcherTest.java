@@ -0,0 +1,68 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CompiledBarcodeMatcherTest {
+	
+	@Test
+	public void testSameAsTree() throws Exception {
+		Random rand = new Random(7);
+		PrefixTree tree = new PrefixTree(Config.loadOptions(new String[] {"default.config"}));
+		List<String> barcodes = new ArrayList<>();
+		for (int i = 0; i < 384; i++) {
+			String barcode = randomBases(rand, 4 + rand.nextInt(5), "ACGT");
+			barcodes.add(barcode);
+			tree.addBarcode(barcode);
+		}
+		BarcodeMatcher treeMatcher = tree.newTreeMatcher();
+		BarcodeMatcher compiled = tree.newMatcher();
+		assert compiled instanceof CompiledBarcodeMatcher;
+		
+		String[] overhangs = {"CAGC", "CTGC"};
+		int nMatched = 0;
+		int nFuzzed = 0;
+		for (int i = 0; i < 200_000; i++) {
+			// a barcode and overhang with a few errors thrown in, followed by the rest of the read
+			byte[] read = (barcodes.get(rand.nextInt(barcodes.size())) + overhangs[rand.nextInt(2)] 
+					+ randomBases(rand, 20, "ACGT")).getBytes();
+			for (int nErrors = rand.nextInt(3); nErrors > 0; nErrors--) {
+				read[rand.nextInt(12)] = (byte) "ACGTN".charAt(rand.nextInt(5));
+			}
+			byte[] quality = randomBases(rand, read.length, "#+5?FIJ").getBytes();
+			
+			int expected = treeMatcher.findBarcodeId(read);
+			assert compiled.findBarcodeId(read) == expected;
+			if (expected >= 0) {
+				nMatched++;
+			}
+			expected = treeMatcher.fuzzyMatchId(read, quality);
+			assert compiled.fuzzyMatchId(read, quality) == expected : new String(read) + " " + new String(quality);
+			if (expected >= 0) {
+				nFuzzed++;
+			}
+		}
+		assert nMatched > 0 && nFuzzed > nMatched;
+	}
+	
+	@Test
+	public void testRejectsOtherBases() throws Exception {
+		PrefixTree tree = new PrefixTree(Config.loadOptions(new String[] {"default.config"}));
+		tree.addBarcode("ACRT");
+		try {
+			tree.newMatcher();
+			assert false;
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	private static String randomBases(Random rand, int len, String bases) {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < len; i++) {
+			result.append(bases.charAt(rand.nextInt(bases.length())));
+		}
+		return result.toString();
+	}
+}
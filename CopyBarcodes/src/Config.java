@@ -25,7 +25,32 @@ import java.util.Set;
  * append - if the output files already exist, should we append to it (default is false, we overwrite instead)
  * fuzzyMatch - should the program attempt to fuzzy match barcodes (default true)
  * debugOut - should the program generate a debug output file with all the reads that failed to be parsed
- * percentToRetain - should the program downsample the input to simulate a cheaper data-gathering run
+ * printProgress - true|false, while demultiplexing, print how much of the input has been read every second, with the
+ *   reads and MB (compressed) per second, and roughly how long is left (default false)
+ * percentToRetain - should the program downsample the input to simulate a cheaper data-gathering run. Downsampler also
+ *   takes a comma-separated list, and writes a nested subsample for each in one pass (the other tools use the first)
+ * matchThreads - how many threads match barcodes, separately from the thread parsing the input (default is one per core)
+ * matcher - compiled|kmer|tree, how barcodes are matched (default compiled). kmer is the fastest at fuzzy matching, but only
+ *   agrees with the others when no read can be one base off from two barcodes
+ * waitStrategy - spin|yield|park, what the pipeline threads do while waiting on each other (default park).
+ *   spin reacts fastest but keeps every core busy, park leaves idle cores free for other jobs
+ * maxOpenSamples - the most samples whose output files are open at once when demultiplexing (default 0, no limit).
+ *   Every open sample holds on to file handles and compression buffers, the rest are buffered in memory
+ * twoPhase - true|false, demultiplex in two passes: first spill the matched reads, uncompressed, to one file per
+ *   persist thread, then compress them into the samples' files (default false)
+ * spillDirectory - where two-phase demultiplexing puts its spill files (default is the working directory)
+ * parallelFilePairs - true|false, when demultiplexing several pairs of source files, parse each pair at the same time
+ *   instead of one after another (default false). Reads from different pairs end up interleaved in the output
+ * retainByReadName - true|false, with percentToRetain, decide which reads to keep from a hash of their names
+ *   rather than at random (default false). Both mates of a pair are always kept together, and the same seed 
+ *   always keeps the same reads
+ * retainSeed - the seed for retainByReadName and readsToRetain (default 0)
+ * readsToRetain - downsample to exactly this many reads (or pairs) instead of percentToRetain (default 0, off)
+ * metricsFile - where to write how busy each stage of the pipeline is, as JSON (default is not to write it), along
+ *   with decompression, compression and disk writes. The same numbers are always available over JMX
+ * metricsIntervalSeconds - how often the metricsFile gets rewritten (default 5)
+ * discardOutput - true|false, throw the output away instead of compressing and writing it (default false). Only
+ *   useful for measuring how fast everything else is
  */
 public class Config {
 	private final Set<String> overhangs;
@@ -44,9 +69,23 @@ public class Config {
 	// Typically used to see if a cheaper request to the magic reading company would produce the same quality final data in terms of finding
 	// interesting points of comparison on the chromosomes
 	private final int percentToRetain; 
+	private final List<Integer> percentsToRetain;
 	private final boolean retainByTruncating;
+	private final boolean retainByReadName;
+	private final long retainSeed;
+	private final long readsToRetain;
+	private final String metricsFile;
+	private final int metricsIntervalSeconds;
+	private final boolean discardOutput;
 	
 	private final boolean printProgress;
+	private final int matchThreads;
+	private final String matcher;
+	private final String waitStrategy;
+	private final int maxOpenSamples;
+	private final boolean twoPhase;
+	private final String spillDirectory;
+	private final boolean parallelFilePairs;
 	
 	public static Config loadOptions(String[] args) throws IOException {
 		Map<String, String> properties = new HashMap<>();
@@ -68,9 +107,23 @@ public class Config {
 				getList(properties.getOrDefault("sourceFileInterleaved", "")),
 				properties.getOrDefault("population", ""),
 				properties.getOrDefault("overhang", "").split(","),
-				Integer.parseInt(properties.getOrDefault("percentToRetain", "100")),
+				getIntList(properties.getOrDefault("percentToRetain", "100")),
 				Boolean.parseBoolean(properties.getOrDefault("printProgress", "false")),
-				Boolean.parseBoolean(properties.getOrDefault("retainByTruncating", "false")));
+				Boolean.parseBoolean(properties.getOrDefault("retainByTruncating", "false")),
+				Integer.parseInt(properties.getOrDefault("matchThreads", 
+						String.valueOf(Runtime.getRuntime().availableProcessors()))),
+				properties.getOrDefault("matcher", "compiled"),
+				properties.getOrDefault("waitStrategy", "park"),
+				Integer.parseInt(properties.getOrDefault("maxOpenSamples", "0")),
+				Boolean.parseBoolean(properties.getOrDefault("twoPhase", "false")),
+				properties.getOrDefault("spillDirectory", "."),
+				Boolean.parseBoolean(properties.getOrDefault("parallelFilePairs", "false")),
+				Boolean.parseBoolean(properties.getOrDefault("retainByReadName", "false")),
+				Long.parseLong(properties.getOrDefault("retainSeed", "0")),
+				Long.parseLong(properties.getOrDefault("readsToRetain", "0")),
+				properties.getOrDefault("metricsFile", ""),
+				Integer.parseInt(properties.getOrDefault("metricsIntervalSeconds", "5")),
+				Boolean.parseBoolean(properties.getOrDefault("discardOutput", "false")));
 	}
 
 	private static void loadFromFile(String file, Map<String, String> props) throws IOException {
@@ -99,9 +152,20 @@ public class Config {
 		return result;
 	}
 	
+	private static List<Integer> getIntList(String list) {
+		List<Integer> result = new ArrayList<>();
+		for (String str : getList(list)) {
+			result.add(Integer.parseInt(str.trim()));
+		}
+		return result;
+	}
+	
 	public Config(char minQuality, boolean align, boolean append, boolean fuzzyMatch, boolean debugOut, String barcodes,
 			List<String> sourceFileForward, List<String> sourceFileReverse, List<String> sourceFileInterleaved, String population,
-			String[] overhangs, int percentToRetain, boolean printProgress, boolean retainByTruncating) {
+			String[] overhangs, List<Integer> percentsToRetain, boolean printProgress, boolean retainByTruncating, int matchThreads,
+			String matcher, String waitStrategy, int maxOpenSamples, boolean twoPhase, String spillDirectory,
+			boolean parallelFilePairs, boolean retainByReadName, long retainSeed,
+			long readsToRetain, String metricsFile, int metricsIntervalSeconds, boolean discardOutput) {
 		this.overhangs = new HashSet<>();
 		for (String overhang : overhangs) {
 			this.overhangs.add(overhang);
@@ -116,9 +180,23 @@ public class Config {
 		this.sourceFileReverse = sourceFileReverse;
 		this.sourceFileInterleaved = sourceFileInterleaved;
 		this.population = population;
-		this.percentToRetain = percentToRetain;
+		this.percentToRetain = percentsToRetain.get(0);
+		this.percentsToRetain = percentsToRetain;
 		this.printProgress = printProgress;
 		this.retainByTruncating = retainByTruncating;
+		this.matchThreads = matchThreads;
+		this.matcher = matcher;
+		this.waitStrategy = waitStrategy;
+		this.maxOpenSamples = maxOpenSamples;
+		this.twoPhase = twoPhase;
+		this.spillDirectory = spillDirectory;
+		this.parallelFilePairs = parallelFilePairs;
+		this.retainByReadName = retainByReadName;
+		this.retainSeed = retainSeed;
+		this.readsToRetain = readsToRetain;
+		this.metricsFile = metricsFile;
+		this.metricsIntervalSeconds = metricsIntervalSeconds;
+		this.discardOutput = discardOutput;
 	}
 
 	public Set<String> getOverhangs() {
@@ -169,6 +247,10 @@ public class Config {
 		return percentToRetain;
 	}
 	
+	public List<Integer> getPercentsToRetain() {
+		return percentsToRetain;
+	}
+	
 	public boolean getPrintProgress() {
 		return printProgress;
 	}
@@ -176,6 +258,58 @@ public class Config {
 	public boolean isRetainByTruncating() {
 		return retainByTruncating;
 	}
+	
+	public boolean isRetainByReadName() {
+		return retainByReadName;
+	}
+	
+	public long getRetainSeed() {
+		return retainSeed;
+	}
+	
+	public long getReadsToRetain() {
+		return readsToRetain;
+	}
+	
+	public String getMetricsFile() {
+		return metricsFile;
+	}
+	
+	public int getMetricsIntervalSeconds() {
+		return metricsIntervalSeconds;
+	}
+	
+	public boolean isDiscardOutput() {
+		return discardOutput;
+	}
+	
+	public int getMatchThreads() {
+		return matchThreads;
+	}
+	
+	public String getMatcher() {
+		return matcher;
+	}
+	
+	public String getWaitStrategy() {
+		return waitStrategy;
+	}
+	
+	public int getMaxOpenSamples() {
+		return maxOpenSamples;
+	}
+	
+	public boolean isTwoPhase() {
+		return twoPhase;
+	}
+	
+	public String getSpillDirectory() {
+		return spillDirectory;
+	}
+	
+	public boolean isParallelFilePairs() {
+		return parallelFilePairs;
+	}
 
 	@Override
 	public String toString() {
@@ -183,7 +317,13 @@ public class Config {
 				+ append + ", fuzzyMatch=" + fuzzyMatch + ", debugOut=" + debugOut + ", barcodes=" + barcodes
 				+ ", sourceFileForward=" + sourceFileForward + ", sourceFileReverse=" + sourceFileReverse
 				+ ", sourceFileInterleaved=" + sourceFileInterleaved + ", population=" + population
-			    + ", percentToRetain=" + percentToRetain
-				+ ", retainByTruncating=" + retainByTruncating + ", printProgress=" + printProgress + "]";
+			    + ", percentToRetain=" + percentsToRetain
+				+ ", retainByTruncating=" + retainByTruncating + ", retainByReadName=" + retainByReadName 
+				+ ", retainSeed=" + retainSeed + ", readsToRetain=" + readsToRetain + ", printProgress=" + printProgress 
+				+ ", matchThreads=" + matchThreads + ", matcher=" + matcher 
+				+ ", waitStrategy=" + waitStrategy + ", maxOpenSamples=" + maxOpenSamples
+				+ ", twoPhase=" + twoPhase + ", spillDirectory=" + spillDirectory
+				+ ", parallelFilePairs=" + parallelFilePairs + ", metricsFile=" + metricsFile 
+				+ ", metricsIntervalSeconds=" + metricsIntervalSeconds + ", discardOutput=" + discardOutput + "]";
 	}
 }
@@ -1,28 +1,21 @@
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.atomic.LongAdder;
 
 public class CopyBarcodes {
 
 	private static final int MIN_BARCODE_LEN = 4;
-	static final int MAX_LINE_LEN = 400;
 	
 	public static void main(String[] args) throws Exception {
 		if (args.length < 1) {
@@ -42,8 +35,12 @@ public class CopyBarcodes {
 		
 		// load barcodes
 		PrefixTree barcodes = new PrefixTree(config);
-		InputStream iisFwd = MultiFileInputStream.getStream(forwardFile); 
-		InputStream iisRev = MultiFileInputStream.getStream(reverseFile);
+		LongAdder bytesRead = new LongAdder();
+		// one stream each way in, one writer out
+		PipelineMetrics metrics = new PipelineMetrics("CopyBarcodes", 2, 1);
+		metrics.setInputBytes(bytesRead::sum);
+		InputStream iisFwd = MultiFileInputStream.getStream(forwardFile, bytesRead, metrics.getInflate()); 
+		InputStream iisRev = MultiFileInputStream.getStream(reverseFile, null, metrics.getInflate());
 		
 		Set<String> barcodeSet = loadBarcodeFile(barcodeFile, barcodes, new HashMap<>());
 		int minEditDistance = getMinEditDistance(barcodeSet);
@@ -58,66 +55,30 @@ public class CopyBarcodes {
 		// unusual optimizations to minimize object allocations (looping & calling charAt vs substring, for instance)
 		
 		// read through forward-file, extract and attach barcodes to reverse file
-		try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
-				new GZIPOutputStream(new FileOutputStream(outputFile))));
-				BufferedWriter debugOut = debug ? new BufferedWriter(new OutputStreamWriter(
-						new FileOutputStream("debugOut.txt"))) : null;
-				ReusingBufferedReader forward = new ReusingBufferedReader(new InputStreamReader(iisFwd));
-				ReusingBufferedReader reverse = new ReusingBufferedReader(new InputStreamReader(iisRev));) {
+		try (FastqWriter out = new FastqWriter(config.isDiscardOutput() ? new DiscardingOutputStream()
+						: new ParallelGzipOutputStream(new FileOutputStream(outputFile), outputFile, metrics));
+				FastqWriter debugOut = debug ? new FastqWriter(new FileOutputStream("debugOut.txt")) : null;
+				ByteFastqReader forward = new ByteFastqReader(iisFwd);
+				ByteFastqReader reverse = new ByteFastqReader(iisRev);) {
 
 			// both reading and writing to disk tends to buffer; build up enough 
-			// work in the queue so that one thread can work while the other is flushing/filling the buffer
+			// work in the ring so that one thread can work while the other is flushing/filling the buffer
 			// Generally, the writing thread takes longer than the reading thread
-			int bufferSize = 150; 
-			ArrayBlockingQueue<Read> availableReadPool = new ArrayBlockingQueue<>(bufferSize);
-			ArrayBlockingQueue<Read> loadedReads = new ArrayBlockingQueue<>(bufferSize);
-			for (int i = 0; i < bufferSize; i++) {
-				availableReadPool.add(new Read());
-			}
-			CountDownLatch persistFinished = new CountDownLatch(1);
-			ExecutorService exec = Executors.newFixedThreadPool(2);
-			LoadConfig loadConfig = new LoadConfig(fuzzyMatch, debug, false, RetainBehavior.KEEP_ALL);
-			Future<?> load = exec.submit(() -> {
-				doLoad(loadConfig, barcodes, stats, forward, reverse, availableReadPool, loadedReads);
-			});
-			Future<?> persist = exec.submit(() -> {
-				try {
-					while (true) {
-						Read read = loadedReads.take();
-						persistBarcodedRead(fuzzyMatch, out, debugOut, read);
-						availableReadPool.put(read);
-					}
-				} catch (InterruptedException e) {
-					// stop reading, this is pretty hacky, but avoids having to check a conditional constantly
-					try {
-						while (!loadedReads.isEmpty()) {
-							Read read = loadedReads.take();
-							persistBarcodedRead(fuzzyMatch, out, debugOut, read);
-						}
-					} catch (InterruptedException | IOException e1) {
-						e1.printStackTrace();
-					} finally {
-						persistFinished.countDown();
-					}
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			});
-			
-			// first .get call will return once the input files have been fully read.
-			// Interrupt the persistence thread to tell it no more work is getting added to the queue
-			// await the countdown latch to see when the outstanding work queue has been fully persisted
-			// (we can't just call .get again, because that will immediately return and say the future was cancelled)
-			load.get();
-			
-			// for test purposes, make sure the second thread has started before cancelling it
-			if (System.currentTimeMillis() - startTime < 1000) {
-				Thread.sleep(1000);
+			LoadConfig loadConfig = new LoadConfig(fuzzyMatch, debug, false, RetainBehavior.KEEP_ALL, config.getMatchThreads());
+			// the end of the input gets passed down the pipeline, so once it returns everything's been written
+			Closeable snapshots = metrics.writeSnapshots(config.getMetricsFile(), config.getMetricsIntervalSeconds());
+			try {
+				newReadPipeline(loadConfig, barcodes, stats, forward, reverse, WaitStrategy.forName(config.getWaitStrategy()))
+						.sink("writer", batch -> {
+							for (int i = 0; i < batch.size; i++) {
+								persistBarcodedRead(barcodes, out, debugOut, batch.reads[i]);
+							}
+						})
+						.metrics(metrics, batch -> batch.size, ReadBatch::bytes)
+						.run();
+			} finally {
+				snapshots.close();
 			}
-			
-			persist.cancel(true);
-			persistFinished.await();
-			exec.shutdown();
 		}
 		long endTime = System.currentTimeMillis();
 		long duration = (endTime - startTime);
@@ -138,50 +99,100 @@ public class CopyBarcodes {
 		}
 	}
 	
-	public static void doLoad(LoadConfig loadConfig, PrefixTree barcodes, OutputStats stats,
-			ReusingBufferedReader forward, ReusingBufferedReader reverse, ArrayBlockingQueue<Read> availableReadPool,
-			ArrayBlockingQueue<Read> loadedReads) {
-		try {
-			String forwardLine = "";
-			while ((forwardLine = forward.readLine()) != null) {
-				Read read = availableReadPool.take();
+	/**
+	 * Parses batches of reads from forward (and reverse), and shares the work of matching their barcodes between 
+	 * loadConfig.getNumMatchThreads() threads. Add the writer(s) and run it.
+	 */
+	public static Pipeline<ReadBatch> newReadPipeline(LoadConfig loadConfig, PrefixTree barcodes, OutputStats stats,
+			ByteFastqReader forward, ByteFastqReader reverse, WaitStrategy waitStrategy) {
+		return newReadPipeline(loadConfig, barcodes, stats, 
+				Collections.singletonList(newParser(loadConfig, stats, forward, reverse)), waitStrategy);
+	}
+	
+	// the same, but with several parsers running at once (i.e. one per pair of input files)
+	public static Pipeline<ReadBatch> newReadPipeline(LoadConfig loadConfig, PrefixTree barcodes, OutputStats stats,
+			List<Pipeline.Source<ReadBatch>> parsers, WaitStrategy waitStrategy) {
+		return new Pipeline<>(ReadBatch::new, waitStrategy)
+				.sources("parser", parsers)
+				.parallel("matcher", loadConfig.getNumMatchThreads(), () -> {
+					BarcodeMatcher matcher = barcodes.newMatcher();
+					return batch -> doMatch(loadConfig, barcodes, matcher, stats, batch);
+				});
+	}
+	
+	// each parser has to have its own retain behavior in loadConfig, since they aren't thread safe
+	public static Pipeline.Source<ReadBatch> newParser(LoadConfig loadConfig, OutputStats stats, 
+			ByteFastqReader forward, ByteFastqReader reverse) {
+		return batch -> parseBatch(loadConfig, stats, forward, reverse, batch);
+	}
+	
+	// Fills the batch with the next reads, returning false once the input runs out (the last batch might be empty)
+	static boolean parseBatch(LoadConfig loadConfig, OutputStats stats,
+			ByteFastqReader forward, ByteFastqReader reverse, ReadBatch batch) throws IOException {
+		batch.clear();
+		while (!batch.isFull()) {
+			Read read = batch.next();
+			if (!loadRead(forward, reverse, batch, read, loadConfig.isReverseMissing())) {
+				return false;
+			}
 
-				if (loadRead(forward, reverse, forwardLine, read, loadConfig.isReverseMissing())) {
-					if (!loadConfig.getRetainBehavior().keepRead()) {
-						// pretend we didn't see this line - this is different than marking it as invalid, because those get written
-						// to debugging output
-						stats.nRedacted.getAndIncrement();
-						availableReadPool.put(read);
-					} else {
-						read.barcodeLen = barcodes.findBarcodeLen(read.forwardLineSet[1]);
-						if (read.barcodeLen >= MIN_BARCODE_LEN) {
-							stats.nWritten.getAndIncrement();
-						} else if (loadConfig.isFuzzyMatch()) {
-							String fuzzedMatch = barcodes.fuzzyMatch(read.forwardLineSet[1],
-									read.forwardLineSet[3], loadConfig.isDebug() ? stats : null);
-							if (fuzzedMatch.length() >= MIN_BARCODE_LEN) {
-								stats.nFuzzed.getAndIncrement();
-								read.fuzzedMatch = fuzzedMatch;
-							} else {
-								read.fuzzedMatch = null; // clear from possible previous run
-								stats.nSkipped.getAndIncrement();
-							}
-						} else {
-							stats.nSkipped.getAndIncrement();
-						}
-						loadedReads.put(read);
-					}
+			if (checkHeaders(read, loadConfig.isReverseMissing())) {
+				// the retain behaviors aren't thread safe, so this stays on the parsing thread
+				if (!loadConfig.getRetainBehavior().keepRead(read.buf, read.lineStarts[0], read.lineLens[0])) {
+					// pretend we didn't see this line - this is different than marking it as invalid, because those get written
+					// to debugging output
+					stats.nRedacted.getAndIncrement();
+					continue;
+				}
+				read.validHeader = true;
+			} else {
+				read.validHeader = false;
+				read.barcodeId = BarcodeMatcher.NO_MATCH;
+				stats.nSkipped.getAndIncrement();
+				stats.nSkippedHeader.getAndIncrement();
+			}
+			batch.keep();
+		}
+		return true;
+	}
+	
+	private static void doMatch(LoadConfig loadConfig, PrefixTree tree, BarcodeMatcher barcodes, OutputStats stats,
+			ReadBatch batch) {
+		// the counters are shared by all the matchers, so only update them once per batch
+		int nWritten = 0;
+		int nFuzzed = 0;
+		int nSkipped = 0;
+		for (int i = 0; i < batch.size; i++) {
+			Read read = batch.reads[i];
+			if (!read.validHeader) {
+				continue; // already counted as skipped
+			}
+			int id = barcodes.findBarcodeId(read.buf, read.lineStarts[1]);
+			read.fuzzed = false;
+			if (id >= 0 && tree.getBarcodeLen(id) >= MIN_BARCODE_LEN) {
+				nWritten++;
+			} else if (loadConfig.isFuzzyMatch()) {
+				id = barcodes.fuzzyMatchId(read.buf, read.lineStarts[1], read.buf, read.lineStarts[3]);
+				if (id >= 0 && tree.getBarcodeLen(id) >= MIN_BARCODE_LEN) {
+					nFuzzed++;
+					read.fuzzed = true;
 				} else {
-					read.barcodeLen = 0;
-					read.fuzzedMatch = null;
-					stats.nSkipped.getAndIncrement();
-					stats.nSkippedHeader.getAndIncrement();
-					loadedReads.put(read);
+					if (id < 0 && loadConfig.isDebug()) {
+						PrefixTree.countSkipReason(id, stats);
+					}
+					id = BarcodeMatcher.NO_MATCH;
+					nSkipped++;
 				}
+			} else {
+				id = BarcodeMatcher.NO_MATCH;
+				nSkipped++;
 			}
-		} catch (InterruptedException | IOException e) {
-			e.printStackTrace();
+			read.barcodeId = id;
+			read.barcodeLen = id >= 0 ? tree.getBarcodeLen(id) : 0;
 		}
+		stats.nWritten.addAndGet(nWritten);
+		stats.nFuzzed.addAndGet(nFuzzed);
+		stats.nSkipped.addAndGet(nSkipped);
 	}
 
 	public static Set<String> loadBarcodeFile(String barcodeFile, PrefixTree barcodes, Map<String, String> barcodeToSample)
@@ -227,97 +238,65 @@ public class CopyBarcodes {
 		return minDistance;
 	}
 
-	private static void persistBarcodedRead(boolean fuzzyMatch,
-			BufferedWriter out, BufferedWriter debugOut, Read read) throws IOException {
+	private static void persistBarcodedRead(PrefixTree barcodes,
+			FastqWriter out, FastqWriter debugOut, Read read) throws IOException {
+		byte[] buf = read.buf;
+		int[] starts = read.lineStarts;
 		// only keep properly barcoded lines
-		if (read.barcodeLen >= MIN_BARCODE_LEN) {
-			out.write(read.forwardLineSet[0], 0, read.lineLens[0]);
-			out.newLine();
-			out.write(read.forwardLineSet[1], 0, read.lineLens[1]);
-			out.newLine();
-			out.write(read.forwardLineSet[2], 0, read.lineLens[2]);
-			out.newLine();
-			out.write(read.forwardLineSet[3], 0, read.lineLens[3]);
-			out.newLine();
+		if (read.barcodeId >= 0 && !read.fuzzed) {
+			out.writeRecord(read, 0);
 			
-			out.write(read.reverseLineSet[0], 0, read.lineLens[4]);
-			out.newLine();
+			out.writeLine(buf, starts[4], read.lineLens[4]);
 			// write the barcode
-			for (int i = 0; i < read.barcodeLen; i++) {
-				out.write(read.forwardLineSet[1][i]);
-			}
-			out.write(read.reverseLineSet[1], 0, read.lineLens[5]);
-			out.newLine();
-			out.write(read.reverseLineSet[2], 0, read.lineLens[6]);
-			out.newLine();
+			out.writeLine(buf, starts[1], read.barcodeLen, buf, starts[5], read.lineLens[5]);
+			out.writeLine(buf, starts[6], read.lineLens[6]);
 			// write the quality for the barcode
-			for (int i = 0; i < read.barcodeLen; i++) {
-				out.write(read.forwardLineSet[3][i]);
-			}
-			out.write(read.reverseLineSet[3], 0, read.lineLens[7]);
-			out.newLine();
-		} else if (read.fuzzedMatch != null) {
-			out.write(read.forwardLineSet[0], 0, read.lineLens[0]);
-			out.newLine();
-			out.write(read.fuzzedMatch);
-			out.write(read.forwardLineSet[1], read.fuzzedMatch.length(), read.lineLens[1] - read.fuzzedMatch.length());
-			out.newLine();
-			out.write(read.forwardLineSet[2], 0, read.lineLens[2]);
-			out.newLine();
-			out.write(read.forwardLineSet[3], 0, read.lineLens[3]);
-			out.newLine();
+			out.writeLine(buf, starts[3], read.barcodeLen, buf, starts[7], read.lineLens[7]);
+		} else if (read.barcodeId >= 0) {
+			byte[] fuzzedMatch = barcodes.getBarcode(read.barcodeId);
+			out.writeLine(buf, starts[0], read.lineLens[0]);
+			out.writeLine(fuzzedMatch, 0, fuzzedMatch.length, 
+					buf, starts[1] + fuzzedMatch.length, read.lineLens[1] - fuzzedMatch.length);
+			out.writeLine(buf, starts[2], read.lineLens[2]);
+			out.writeLine(buf, starts[3], read.lineLens[3]);
 
-			out.write(read.reverseLineSet[0], 0, read.lineLens[4]);
-			out.newLine();
+			out.writeLine(buf, starts[4], read.lineLens[4]);
 			// write the barcode
-			out.write(read.fuzzedMatch);
-			out.write(read.reverseLineSet[1], 0, read.lineLens[5]);
-			out.newLine();
-			out.write(read.reverseLineSet[2], 0, read.lineLens[6]);
-			out.newLine();
+			out.writeLine(fuzzedMatch, 0, fuzzedMatch.length, buf, starts[5], read.lineLens[5]);
+			out.writeLine(buf, starts[6], read.lineLens[6]);
 			// write the quality for the barcode - uncorrected
-			for (int i = 0; i < read.fuzzedMatch.length(); i++) {
-				out.write(read.forwardLineSet[3][i]);
-			}
-			out.write(read.reverseLineSet[3], 0, read.lineLens[7]);
-			out.newLine();
+			out.writeLine(buf, starts[3], fuzzedMatch.length, buf, starts[7], read.lineLens[7]);
 		} else if (debugOut != null) {
-			debugOut.write(read.forwardLineSet[1], 0, read.lineLens[1]);
-			debugOut.newLine();
-			debugOut.write(read.forwardLineSet[3], 0, read.lineLens[3]);
-			debugOut.newLine();
+			debugOut.writeLine(buf, starts[1], read.lineLens[1]);
+			debugOut.writeLine(buf, starts[3], read.lineLens[3]);
 		}
 	}
 
-	private static boolean loadRead(ReusingBufferedReader forward, ReusingBufferedReader reverse, String forwardLine,
+	// returns false once the forward file runs out of reads
+	private static boolean loadRead(ByteFastqReader forward, ByteFastqReader reverse, ReadBatch batch,
 			Read read, boolean reverseMissing) throws IOException {
 		// read sequence id line, barcode line, delimiter, and quality
-		read.forwardLineSet[0] = forwardLine.toCharArray();
-		read.lineLens[0] = forwardLine.length();
-		read.lineLens[1] = forward.readLine(read.forwardLineSet[1]);
-		read.lineLens[2] = forward.readLine(read.forwardLineSet[2]);
-		read.lineLens[3] = forward.readLine(read.forwardLineSet[3]);
-		if (!reverseMissing) {
-			read.lineLens[4] = reverse.readLine(read.reverseLineSet[0]);
-			read.lineLens[5] = reverse.readLine(read.reverseLineSet[1]);
-			read.lineLens[6] = reverse.readLine(read.reverseLineSet[2]);
-			read.lineLens[7] = reverse.readLine(read.reverseLineSet[3]);
-		} else {
+		if (!forward.readRecord(batch, read, 0)) {
+			return false;
+		}
+		if (reverseMissing || !reverse.readRecord(batch, read, 4)) {
 			read.lineLens[4] = 0;
 			read.lineLens[5] = 0;
 			read.lineLens[6] = 0;
 			read.lineLens[7] = 0;
 		}
-		
-		return checkHeaders(read, reverseMissing);
+		return true;
 	}
 
 	// verify the headers match on x & y
-	private static boolean checkHeaders(Read read, boolean reverseMissing) {
+	static boolean checkHeaders(Read read, boolean reverseMissing) {
+		byte[] buf = read.buf;
+		int fwd = read.lineStarts[0];
+		int rev = read.lineStarts[4];
 		int posFwd = 0;
 		int nSplitsFound = 0;
 		while (posFwd < read.lineLens[0] && nSplitsFound < 5) {
-			if (read.forwardLineSet[0][posFwd] == ':') {
+			if (buf[fwd + posFwd] == ':') {
 				nSplitsFound++;
 			}
 			posFwd++;
@@ -331,7 +310,7 @@ public class CopyBarcodes {
 			nSplitsFound = 0;
 
 			while (posRev < read.lineLens[4] && nSplitsFound < 5) {
-				if (read.reverseLineSet[0][posRev] == ':') {
+				if (buf[rev + posRev] == ':') {
 					nSplitsFound++;
 				}
 				posRev++;
@@ -341,11 +320,11 @@ public class CopyBarcodes {
 			}
 
 			while (posFwd < read.lineLens[0] && posRev < read.lineLens[4] && nSplitsFound < 7) {
-				if (read.forwardLineSet[0][posFwd] != read.reverseLineSet[0][posRev]) {
+				if (buf[fwd + posFwd] != buf[rev + posRev]) {
 					return false;
 				}
-				if (read.reverseLineSet[0][posRev] == ':'
-						|| read.reverseLineSet[0][posRev] == ' ') {
+				if (buf[rev + posRev] == ':'
+						|| buf[rev + posRev] == ' ') {
 					nSplitsFound++;
 				}
 				posFwd++;
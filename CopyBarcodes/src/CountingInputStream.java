@@ -0,0 +1,47 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts the bytes read through it into a counter that can be shared by several streams. It sits under the
+// decompression, which reads in large chunks, so counting costs next to nothing compared to counting reads.
+public class CountingInputStream extends FilterInputStream {
+	
+	private final LongAdder bytesRead;
+	
+	public CountingInputStream(InputStream in, LongAdder bytesRead) {
+		super(in);
+		this.bytesRead = bytesRead;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b >= 0) {
+			bytesRead.increment();
+		}
+		return b;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = in.read(b, off, len);
+		if (n > 0) {
+			bytesRead.add(n);
+		}
+		return n;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = in.skip(n);
+		bytesRead.add(skipped);
+		return skipped;
+	}
+	
+	// marking would count the bytes read again after a reset
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
@@ -1,25 +1,20 @@
-import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Demultiplexer {
 	
-	private static final int MIN_BARCODE_LEN = 4;
-	static final int MAX_LINE_LEN = 400;
 	static final int MAX_NUM_PERSIST_THREADS = 5; // this is sufficient to fully saturate i/o
 
 	public static void main(String[] args) throws Exception {
@@ -38,38 +33,36 @@ public class Demultiplexer {
 
 		// load barcodes
 		PrefixTree barcodes = new PrefixTree(config);
-		InputStream iisFwd = MultiFileInputStream.getStream(forwardFile); 
-		InputStream iisRev = MultiFileInputStream.getStream(reverseFile);
 		boolean reverseMissing = reverseFile.isEmpty(); // in this case, just use the forward reads
+		if (config.isParallelFilePairs() && !reverseMissing && forwardFile.size() != reverseFile.size()) {
+			throw new IllegalArgumentException("parallelFilePairs needs as many reverse files as forward files, got " 
+					+ forwardFile.size() + " and " + reverseFile.size());
+		}
 		
-		long approxLen = forwardFile.size() * new File(forwardFile.get(0)).length();
-		ProgressTracker tracker = config.getPrintProgress() ? new ByteBasedProgressTracker(approxLen) 
+		// progress comes from how much of the compressed forward files has been read
+		long totalLen = totalLength(forwardFile);
+		LongAdder bytesRead = new LongAdder();
+		ProgressTracker tracker = config.getPrintProgress() ? new ByteBasedProgressTracker(totalLen, bytesRead::sum) 
 				: new NoOpProgressTracker();
-		RetainBehavior retainBehavior = RetainBehaviors.getRetainBehavior(config.getPercentToRetain(), 
-				approxLen / 1024 * ByteBasedProgressTracker.GZIP_READ_PER_KB, config.isRetainByTruncating());
 		
-		ExecutorService progressThread = Executors.newSingleThreadExecutor();
-		Future<?> progressPrinter = progressThread.submit(() -> {
-			while (!Thread.currentThread().isInterrupted()) {
-				tracker.printProgress();
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
-				}
-			}
-		});
+		// The input files are either read one after another as if they were a single file, or each pair gets
+		// its own parser (i.e. one per lane), all of them feeding the same matchers and writers
+		int nParsers = config.isParallelFilePairs() ? forwardFile.size() : 1;
+		int nPersistThreads = Math.min(Runtime.getRuntime().availableProcessors(), MAX_NUM_PERSIST_THREADS);
+		PipelineMetrics metrics = new PipelineMetrics("Demultiplexer", nParsers * (reverseMissing ? 1 : 2), 
+				nPersistThreads);
+		metrics.setInputBytes(bytesRead::sum);
 		
 		Map<String, String> barcodeToSample = new HashMap<>();
-		Map<String, OutputFile> barcodeToOutputFile = new HashMap<>();
 		Set<String> barcodeSet = CopyBarcodes.loadBarcodeFile(barcodeFile, barcodes, barcodeToSample);
-		barcodeToSample.forEach((barcode, sample) -> {
-			try {
-				barcodeToOutputFile.put(barcode, new OutputFile(popName, sample, alignmentFile, config.isAppend()));
-			} catch (IOException e2) {
-				e2.printStackTrace();
-			}
-		});
+		// indexed by barcode id, so reads can find their output without a lookup
+		String[] sampleNames = new String[barcodes.getNumBarcodes()];
+		OutputFile[] outputs = new OutputFile[barcodes.getNumBarcodes()];
+		for (int id = 0; id < outputs.length; id++) {
+			sampleNames[id] = barcodeToSample.get(new String(barcodes.getBarcode(id), StandardCharsets.US_ASCII));
+			outputs[id] = new OutputFile(popName, sampleNames[id], alignmentFile, config.isAppend(), 
+					config.isDiscardOutput(), metrics);
+		}
 		int minEditDistance = CopyBarcodes.getMinEditDistance(barcodeSet);
 		System.out.println("Min edit distance: " + minEditDistance);
 		if (minEditDistance <= 2) {
@@ -82,63 +75,112 @@ public class Demultiplexer {
 		// unusual optimizations to minimize object allocations (looping & calling charAt vs substring, for instance)
 		
 		// read through forward-file, extract and attach barcodes to reverse file
-		try (ReusingBufferedReader forward = new ReusingBufferedReader(new InputStreamReader(iisFwd));
-				ReusingBufferedReader reverse = new ReusingBufferedReader(new InputStreamReader(iisRev));
-				BufferedWriter debugOut = config.isDebugOut() ? new BufferedWriter(new OutputStreamWriter(
-						new FileOutputStream("debugOut.txt"))) : null;) {
+		// the progress printer isn't a daemon, so it's stopped in the finally below whether or not the run succeeds
+		ExecutorService progressThread = Executors.newSingleThreadExecutor();
+		Future<?> progressPrinter = progressThread.submit(() -> {
+			while (!Thread.currentThread().isInterrupted()) {
+				tracker.printProgress();
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		List<ByteFastqReader> readers = new ArrayList<>();
+		try (FastqWriter debugOut = config.isDebugOut() ? new FastqWriter(new FileOutputStream("debugOut.txt")) : null;) {
 
 			// both reading and writing to disk tends to buffer; build up enough 
 			// work in the queue so that one thread can work while the other is flushing/filling the buffer
 			// Generally, the writing thread takes longer than the reading thread
-			int bufferSize = 150; 
-			ArrayBlockingQueue<Read> availableReadPool = new ArrayBlockingQueue<>(bufferSize);
-			ArrayBlockingQueue<Read> loadedReads = new ArrayBlockingQueue<>(bufferSize);
-			for (int i = 0; i < bufferSize; i++) {
-				availableReadPool.add(new Read());
-			}
-			int nPersistThreads = Math.min(Runtime.getRuntime().availableProcessors(), MAX_NUM_PERSIST_THREADS);
-			CountDownLatch persistFinished = new CountDownLatch(nPersistThreads);
-			ExecutorService exec = Executors.newFixedThreadPool(nPersistThreads + 1);
-			LoadConfig loadConfig = new LoadConfig(config.isFuzzyMatch(), config.isDebugOut(), reverseMissing, retainBehavior);
-			Future<?> load = exec.submit(() -> {
-				CopyBarcodes.doLoad(loadConfig, barcodes, stats, forward, reverse, availableReadPool, loadedReads);
-			});
-			List<Future<?>> persists = new ArrayList<>();
-			for (int i = 0; i < nPersistThreads; i++) {
-				persists.add(exec.submit(() -> {
-					try {
-					doWrite(barcodeToOutputFile, availableReadPool, loadedReads, debugOut, tracker);
-					} finally {
-						persistFinished.countDown();
-					}
-				}));
+			List<Pipeline.Source<ReadBatch>> parsers = new ArrayList<>();
+			LoadConfig loadConfig = null;
+			for (int i = 0; i < nParsers; i++) {
+				List<String> forwardFiles = nParsers == 1 ? forwardFile : forwardFile.subList(i, i + 1);
+				List<String> reverseFiles = nParsers == 1 || reverseMissing ? reverseFile : reverseFile.subList(i, i + 1);
+				ByteFastqReader forward = new ByteFastqReader(MultiFileInputStream.getStream(forwardFiles, bytesRead, 
+						metrics.getInflate()));
+				readers.add(forward);
+				ByteFastqReader reverse = new ByteFastqReader(MultiFileInputStream.getStream(reverseFiles, null, 
+						metrics.getInflate()));
+				readers.add(reverse);
+				
+				// the retain behaviors aren't thread safe, so every parser gets its own
+				RetainBehavior retainBehavior = RetainBehaviors.getRetainBehavior(config, 
+						totalLength(forwardFiles) / 1024 * ByteBasedProgressTracker.GZIP_READ_PER_KB);
+				loadConfig = new LoadConfig(config.isFuzzyMatch(), config.isDebugOut(), reverseMissing, retainBehavior,
+						config.getMatchThreads());
+				parsers.add(CopyBarcodes.newParser(loadConfig, stats, forward, reverse));
 			}
 			
-			// first .get call will return once the input files have been fully read.
-			// Interrupt the persistence thread to tell it no more work is getting added to the queue
-			// await the countdown latch to see when the outstanding work queue has been fully persisted
-			// (we can't just call .get again, because that will immediately return and say the future was cancelled)
-			load.get();
+			// each persist thread owns a fixed set of samples (and the debug output goes with the first one),
+			// so every output stream is only ever written by one thread and doesn't need a lock.
+			// All of them go through every batch, and a batch gets reused once the last one is done with it
+			// the limit on open samples is split between them the same way
+			int maxOpenPerShard = config.getMaxOpenSamples() <= 0 ? Integer.MAX_VALUE 
+					: Math.max(1, config.getMaxOpenSamples() / nPersistThreads);
+			OutputFilePool[] pools = new OutputFilePool[nPersistThreads];
+			// in two-phase mode, the reads only get spilled (uncompressed) on the way through, and written out afterwards
+			SpillFile[] spills = new SpillFile[nPersistThreads];
+			// the last snapshot goes out once the replay's done too
+			Closeable snapshots = metrics.writeSnapshots(config.getMetricsFile(), config.getMetricsIntervalSeconds());
+			try {
+				List<RingBuffer.EntryHandler<ReadBatch>> writers = new ArrayList<>();
+				for (int i = 0; i < nPersistThreads; i++) {
+					int shard = i;
+					FastqWriter shardDebugOut = i == 0 ? debugOut : null;
+					pools[i] = new OutputFilePool(maxOpenPerShard);
+					if (config.isTwoPhase()) {
+						spills[i] = new SpillFile(File.createTempFile("spill_" + popName + "_" + shard + "_", ".bin", 
+								new File(config.getSpillDirectory())));
+					}
+					writers.add(batch -> writeShard(outputs, pools[shard], spills[shard], shard, nPersistThreads, batch, 
+							shardDebugOut, tracker));
+				}
 			
-			// for test purposes, make sure the second thread has started before cancelling it
-			if (System.currentTimeMillis() - startTime < 1000) {
-				Thread.sleep(1000);
+				// the end of the input gets passed down the pipeline, so once it returns everything's been written
+				try {
+					CopyBarcodes.newReadPipeline(loadConfig, barcodes, stats, parsers, 
+							WaitStrategy.forName(config.getWaitStrategy()))
+							.broadcast("writer", writers)
+							.metrics(metrics, batch -> batch.size, ReadBatch::bytes)
+							.run();
+				} finally {
+					for (SpillFile spill : spills) {
+						if (spill != null) {
+							spill.close();
+						}
+					}
+				}
+				if (config.isTwoPhase()) {
+					replaySpills(outputs, pools, spills);
+					// the replay's compression and writes count as part of the run
+					metrics.finish();
+				}
+			} finally {
+				// the spills are uncompressed copies of the whole run, so they're deleted even if it fails
+				for (SpillFile spill : spills) {
+					if (spill != null) {
+						spill.delete();
+					}
+				}
+				snapshots.close();
+			}
+		} finally {
+			progressPrinter.cancel(true);
+			progressThread.shutdownNow();
+			for (ByteFastqReader reader : readers) {
+				reader.close();
 			}
-			
-			persists.forEach(persist -> persist.cancel(true));
-			persistFinished.await();
-			exec.shutdown();
 		}
-		progressPrinter.cancel(true);
-		progressThread.shutdownNow();
 		
-		barcodeToOutputFile.values().forEach(file -> {
+		for (OutputFile file : outputs) {
 			try {
 				file.close();
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
-		});
+		}
 		long endTime = System.currentTimeMillis();
 		long duration = (endTime - startTime);
 		String timeStr;
@@ -157,52 +199,67 @@ public class Demultiplexer {
 					+ stats.nSkippedHeader.get() + " due to a mismatched header");
 			
 			System.out.println("Totals per barcode:");
-			barcodeToOutputFile.forEach((barcode, file) -> {
-				System.out.println(barcodeToSample.get(barcode) + ": " + file.getNumWritten());
-			});
+			for (int i = 0; i < outputs.length; i++) {
+				System.out.println(sampleNames[i] + ": " + outputs[i].getNumWritten());
+			}
+		}
+	}
+
+	private static long totalLength(List<String> files) {
+		long len = 0;
+		for (String file : files) {
+			len += new File(file).length();
 		}
+		return len;
 	}
 
-	private static void doWrite(Map<String, OutputFile> barcodeToOutputFile, ArrayBlockingQueue<Read> availableReadPool,
-			ArrayBlockingQueue<Read> loadedReads, BufferedWriter debugOut, ProgressTracker tracker) {
+	// the second phase: every shard's spill file gets written out to its samples at the same time
+	private static void replaySpills(OutputFile[] outputs, OutputFilePool[] pools, SpillFile[] spills) throws Exception {
+		ExecutorService exec = Executors.newFixedThreadPool(spills.length);
 		try {
-			while (true) {
-				Read read = loadedReads.take();
-				persistBarcodedRead(barcodeToOutputFile, read, debugOut);
-				tracker.noteProgress();
-				availableReadPool.put(read);
+			List<Future<?>> replays = new ArrayList<>();
+			for (int i = 0; i < spills.length; i++) {
+				int shard = i;
+				replays.add(exec.submit(() -> {
+					spills[shard].replay(outputs, pools[shard]);
+					return null;
+				}));
 			}
-		} catch (InterruptedException e) {
-			// stop reading, this is pretty hacky, but avoids having to check a conditional constantly
-			try {
-				while (!loadedReads.isEmpty()) {
-					Read read = loadedReads.take();
-					persistBarcodedRead(barcodeToOutputFile, read, debugOut);
-				}
-			} catch (Exception e1) {
-				e1.printStackTrace();
+			for (Future<?> replay : replays) {
+				replay.get();
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
+		} finally {
+			exec.shutdown();
 		}
 	}
 
-	private static void persistBarcodedRead(Map<String, OutputFile> outputs, Read read, BufferedWriter debugOut) throws IOException {
+	// writes the reads in the batch that belong to this shard's samples (unmatched reads belong to the first shard),
+	// or spills them if there is a spill file
+	private static void writeShard(OutputFile[] outputs, OutputFilePool pool, SpillFile spill, int shard, int nShards, 
+			ReadBatch batch, FastqWriter debugOut, ProgressTracker tracker) throws IOException {
+		int nWritten = 0;
+		for (int i = 0; i < batch.size; i++) {
+			Read read = batch.reads[i];
+			if ((read.barcodeId < 0 ? 0 : read.barcodeId % nShards) == shard) {
+				persistBarcodedRead(outputs, pool, spill, read, debugOut);
+				nWritten++;
+			}
+		}
+		tracker.noteProgress(nWritten);
+	}
+
+	private static void persistBarcodedRead(OutputFile[] outputs, OutputFilePool pool, SpillFile spill, Read read, 
+			FastqWriter debugOut) throws IOException {
 		// only keep properly barcoded lines
-		if (read.barcodeLen >= MIN_BARCODE_LEN) {
-			String barcode = new String(read.forwardLineSet[1], 0, read.barcodeLen);
-			OutputFile output = outputs.get(barcode);
-			output.write(read, read.barcodeLen);
-		} else if (read.fuzzedMatch != null) {
-			OutputFile output = outputs.get(read.fuzzedMatch);
-			output.write(read, read.fuzzedMatch.length());
-		} else if (debugOut != null) {
-			synchronized (debugOut) {
-				debugOut.write(read.forwardLineSet[1], 0, read.lineLens[1]);
-				debugOut.newLine();
-				debugOut.write(read.forwardLineSet[3], 0, read.lineLens[3]);
-				debugOut.newLine();
+		if (read.barcodeId >= 0) {
+			if (spill != null) {
+				spill.write(read.barcodeId, read, read.barcodeLen);
+			} else {
+				pool.write(outputs[read.barcodeId], read, read.barcodeLen);
 			}
+		} else if (debugOut != null) {
+			debugOut.writeLine(read.buf, read.lineStarts[1], read.lineLens[1]);
+			debugOut.writeLine(read.buf, read.lineStarts[3], read.lineLens[3]);
 		}
 	}
 }
@@ -80,6 +80,80 @@ public class DemultiplexerTest {
 		checkOutput(0, "bar", ".R2.fq.gz");
 	}
 	
+	@Test
+	public void maxOpenSamplesTest() throws Exception {
+		setUpTestFiles();
+		clearOldFiles();
+		
+		createTestConfig(false, "maxOpenSamples=1");
+		Demultiplexer.main(new String[] {"test.config"});
+		checkOutput(2, "foo", ".R1.fq.gz");
+		checkOutput(1, "bar", ".R2.fq.gz");
+	}
+	
+	@Test
+	public void twoPhaseTest() throws Exception {
+		setUpTestFiles();
+		clearOldFiles();
+		
+		createTestConfig(false, "twoPhase=true", "maxOpenSamples=1");
+		Demultiplexer.main(new String[] {"test.config"});
+		checkOutput(2, "foo", ".R1.fq.gz");
+		checkOutput(1, "bar", ".R2.fq.gz");
+		
+		// the spill files get cleaned up
+		for (File file : new File(".").listFiles()) {
+			assert !file.getName().startsWith("spill_");
+		}
+	}
+	
+	@Test
+	public void twoPhaseFailureTest() throws Exception {
+		setUpTestFiles();
+		clearOldFiles();
+		try (FileOutputStream out = new FileOutputStream("testCorrupt.gz")) {
+			out.write("not gzipped".getBytes());
+		}
+		
+		createTestConfig(false, "twoPhase=true", "sourceFileReverse=testCorrupt.gz");
+		try {
+			Demultiplexer.main(new String[] {"test.config"});
+			assert false;
+		} catch (Exception e) {
+			// expected
+		}
+		
+		// the spill files get cleaned up even though the run failed
+		for (File file : new File(".").listFiles()) {
+			assert !file.getName().startsWith("spill_");
+		}
+	}
+	
+	@Test
+	public void parallelFilePairsTest() throws Exception {
+		setUpTestFiles();
+		clearOldFiles();
+		
+		// the same pair of files twice, as if they were two lanes
+		String forward = new File("testForward.gz").getCanonicalPath().replaceAll("\\\\", "\\\\\\\\");
+		createTestConfig(false, "parallelFilePairs=true", "sourceFileForward=" + forward + "," + forward,
+				"sourceFileReverse=testBackwards.gz,testBackwards.gz");
+		Demultiplexer.main(new String[] {"test.config"});
+		checkOutput(4, "foo", ".R1.fq.gz");
+		checkOutput(2, "bar", ".R2.fq.gz");
+	}
+	
+	@Test
+	public void discardOutputTest() throws Exception {
+		setUpTestFiles();
+		clearOldFiles();
+		
+		createTestConfig(false, "discardOutput=true");
+		Demultiplexer.main(new String[] {"test.config"});
+		assert !new File("pop_foo.R1.fq.gz").exists();
+		assert !new File("pop_bar.R2.fq.gz").exists();
+	}
+	
 	@Test
 	public void progressTest() throws Exception {
 		setUpTestFiles();
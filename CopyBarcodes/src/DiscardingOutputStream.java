@@ -0,0 +1,13 @@
+import java.io.OutputStream;
+
+// Where the output goes with discardOutput, to see how fast everything is without compressing and writing it out
+public class DiscardingOutputStream extends OutputStream {
+
+	@Override
+	public void write(int b) {
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+	}
+}
@@ -1,11 +1,16 @@
-import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
 
 public class Downsampler {
 	
@@ -15,15 +20,43 @@ public class Downsampler {
 			System.exit(-1);
 		}
 		Config config = Config.loadOptions(args);
+		WaitStrategy waitStrategy = WaitStrategy.forName(config.getWaitStrategy());
 		
-		if (config.getSourceFileForward().size() == 0) {
+		if (config.getReadsToRetain() > 0) {
+			// exactly that many reads, picked in a pass over the forward (or interleaved) file before anything's written
+			boolean interleaved = config.getSourceFileForward().isEmpty();
+			List<String> files = new ArrayList<>(config.getSourceFileForward());
+			files.addAll(config.getSourceFileReverse());
+			files.addAll(config.getSourceFileInterleaved());
+			if (files.size() != (interleaved ? 1 : 2)) {
+				throw new IllegalArgumentException("Downsampling does not support multiple input files at once");
+			}
+			LongBuffer picked = ReservoirSample.sampleReads(files.get(0), interleaved ? 2 : 1, config.getReadsToRetain(), 
+					config.getRetainSeed());
+			List<String> results = truncateFiles(files, interleaved ? 8 : 4, () -> new RetainReservoirSample(picked),
+					config.isDiscardOutput(), waitStrategy);
+			System.out.println("Kept " + picked.limit() + " reads, output stored in " + String.join(" and ", results));
+		} else if (config.getPercentsToRetain().size() > 1) {
+			List<String> results = downsampleNested(config);
+			System.out.println("Output stored in " + String.join(" and ", results));
+		} else if (config.isRetainByReadName()) {
+			// every read is kept or dropped the same way in every file, so they can all be done at once
+			RetainBehavior retainBehavior = RetainBehaviors.getRetainBehavior(config, 0);
+			List<String> files = new ArrayList<>(config.getSourceFileForward());
+			files.addAll(config.getSourceFileReverse());
+			files.addAll(config.getSourceFileInterleaved());
+			List<String> results = truncateFiles(files, config.getSourceFileForward().isEmpty() ? 8 : 4, 
+					() -> retainBehavior, config.isDiscardOutput(), waitStrategy);
+			System.out.println("Output stored in " + String.join(" and ", results));
+		} else if (config.getSourceFileForward().size() == 0) {
 			if (config.getSourceFileInterleaved().size() != 1) {
 				throw new IllegalArgumentException("Downsampling does not support multiple input files at once");
 			}
 			String sourceFileInterleaved = config.getSourceFileInterleaved().get(0);
-			RetainBehavior retainBehavior = RetainBehaviors.getRetainBehavior(config.getPercentToRetain(), 
-					new File(sourceFileInterleaved).length() / 1024 * ByteBasedProgressTracker.GZIP_READ_PER_KB / 2, config.isRetainByTruncating());
-			String result = truncateFile(sourceFileInterleaved, 8, retainBehavior);
+			RetainBehavior retainBehavior = RetainBehaviors.getRetainBehavior(config, 
+					new File(sourceFileInterleaved).length() / 1024 * ByteBasedProgressTracker.GZIP_READ_PER_KB / 2);
+			String result = truncateFile(sourceFileInterleaved, 8, retainBehavior, config.isDiscardOutput(), 
+					waitStrategy);
 			System.out.println("Output stored in " + result);
 		} else {
 			if (config.getSourceFileForward().size() != 1) {
@@ -32,38 +65,179 @@ public class Downsampler {
 			String forwardFile = config.getSourceFileForward().get(0);
 			String reverseFile = config.getSourceFileReverse().get(0);
 			
-			RetainBehavior retainBehavior = RetainBehaviors.getRetainBehavior(config.getPercentToRetain(), 
-					new File(forwardFile).length() / 1024 * ByteBasedProgressTracker.GZIP_READ_PER_KB, config.isRetainByTruncating());
-			String result1 = truncateFile(forwardFile, 4, retainBehavior);
-			String result2 = truncateFile(reverseFile, 4, retainBehavior);
+			RetainBehavior retainBehavior = RetainBehaviors.getRetainBehavior(config, 
+					new File(forwardFile).length() / 1024 * ByteBasedProgressTracker.GZIP_READ_PER_KB);
+			String result1 = truncateFile(forwardFile, 4, retainBehavior, config.isDiscardOutput(), waitStrategy);
+			String result2 = truncateFile(reverseFile, 4, retainBehavior, config.isDiscardOutput(), waitStrategy);
 			System.out.println("Output stored in " + result1 + " and " + result2);
 		}
 	}
 	
-	private static String truncateFile(String fileName, int rowsPerRead, RetainBehavior retainBehavior) throws Exception {
-		File inputFile = new File(fileName);
-		File outputFile = new File(inputFile.getParent(), "truncated_" + inputFile.getName());
+	/**
+	 * Writes a subsample for every one of config's percentsToRetain in a single pass over the input (a forward and 
+	 * reverse file, or an interleaved one), each to its own files. Every read (or pair) gets a rank from 0 to 99, 
+	 * and ends up in every subsample keeping more than that percent, so the smaller ones are subsets of the bigger ones.
+	 */
+	private static List<String> downsampleNested(Config config) throws Exception {
+		if (config.isRetainByTruncating()) {
+			throw new IllegalArgumentException("retainByTruncating only supports a single percentToRetain");
+		}
+		boolean interleaved = config.getSourceFileForward().isEmpty();
+		List<String> files = new ArrayList<>(config.getSourceFileForward());
+		files.addAll(config.getSourceFileReverse());
+		files.addAll(config.getSourceFileInterleaved());
+		if (files.size() != (interleaved ? 1 : 2)) {
+			throw new IllegalArgumentException("Downsampling does not support multiple input files at once");
+		}
+		List<Integer> percents = config.getPercentsToRetain();
+		int maxPercent = Collections.max(percents);
 		
-		try (ReusingBufferedReader in = new ReusingBufferedReader(new InputStreamReader(new GZIPInputStream(
-				new FileInputStream(inputFile))));
-				BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(
-						new FileOutputStream(outputFile))))) {
-			String forwardLine = "";
-			while ((forwardLine = in.readLine()) != null) {
-				if (!retainBehavior.keepRead()) {
-					for (int i = 0; i < rowsPerRead - 1; i++) {
-						in.readLine();
-					}
-				} else {
-					out.write(forwardLine);
-					out.newLine();
-					for (int i = 0; i < rowsPerRead - 1; i++) {
-						out.write(in.readLine());
-						out.newLine();
-					}
+		List<Closeable> toClose = new ArrayList<>();
+		List<String> results = new ArrayList<>();
+		try {
+			ByteFastqReader forward = new ByteFastqReader(ParallelGzipInputStream.open(files.get(0)));
+			toClose.add(forward);
+			// the mate comes from the same file when it's interleaved
+			ByteFastqReader reverse = forward;
+			if (!interleaved) {
+				reverse = new ByteFastqReader(ParallelGzipInputStream.open(files.get(1)));
+				toClose.add(reverse);
+			}
+			ByteFastqReader mates = reverse;
+			
+			// every output is written (and compressed) on a thread of its own
+			List<RingBuffer.EntryHandler<ReadBatch>> writers = new ArrayList<>();
+			for (int percent : percents) {
+				for (int f = 0; f < files.size(); f++) {
+					File inputFile = new File(files.get(f));
+					File outputFile = new File(inputFile.getParent(), "truncated_" + percent + "_" + inputFile.getName());
+					results.add(outputFile.getCanonicalPath());
+					FastqWriter out = new FastqWriter(config.isDiscardOutput() ? new DiscardingOutputStream()
+							: new ParallelGzipOutputStream(new FileOutputStream(outputFile)));
+					toClose.add(out);
+					boolean isReverse = f == 1;
+					writers.add(batch -> {
+						for (int i = 0; i < batch.size; i++) {
+							Read read = batch.reads[i];
+							if (read.sampleRank >= percent) {
+								continue;
+							}
+							if (interleaved || !isReverse) {
+								out.writeRecord(read, 0);
+							}
+							if (interleaved || isReverse) {
+								out.writeRecord(read, 4);
+							}
+						}
+					});
 				}
 			}
+			
+			new Pipeline<>(ReadBatch::new, WaitStrategy.forName(config.getWaitStrategy()))
+					.source("parser", batch -> readRankedBatch(forward, mates, config, maxPercent, batch))
+					.broadcast("writer", writers)
+					.run();
+		} finally {
+			for (Closeable closeable : toClose) {
+				closeable.close();
+			}
+		}
+		return results;
+	}
+	
+	// Fills the batch with the next pairs that are in at least one subsample, returning false once the input runs out
+	private static boolean readRankedBatch(ByteFastqReader forward, ByteFastqReader reverse, Config config, 
+			int maxPercent, ReadBatch batch) throws IOException {
+		batch.clear();
+		while (!batch.isFull()) {
+			Read read = batch.next();
+			if (!forward.readRecord(batch, read, 0)) {
+				return false;
+			}
+			if (!reverse.readRecord(batch, read, 4)) {
+				read.lineLens[4] = 0;
+				read.lineLens[5] = 0;
+				read.lineLens[6] = 0;
+				read.lineLens[7] = 0;
+			}
+			read.sampleRank = config.isRetainByReadName() 
+					? RetainByNameHash.rank(read.buf, read.lineStarts[0], read.lineLens[0], config.getRetainSeed())
+					: ThreadLocalRandom.current().nextInt(100);
+			if (read.sampleRank < maxPercent) {
+				batch.keep();
+			}
+		}
+		return true;
+	}
+	
+	// truncates every file at once, each with a retain behavior of its own from retainBehaviors
+	private static List<String> truncateFiles(List<String> files, int rowsPerRead, 
+			Supplier<RetainBehavior> retainBehaviors, boolean discardOutput, 
+			WaitStrategy waitStrategy) throws Exception {
+		ExecutorService exec = Executors.newFixedThreadPool(files.size());
+		try {
+			List<Future<String>> truncated = new ArrayList<>();
+			for (String file : files) {
+				RetainBehavior retainBehavior = retainBehaviors.get();
+				truncated.add(exec.submit(() -> truncateFile(file, rowsPerRead, retainBehavior, discardOutput, 
+						waitStrategy)));
+			}
+			List<String> results = new ArrayList<>();
+			for (Future<String> result : truncated) {
+				results.add(result.get());
+			}
+			return results;
+		} finally {
+			exec.shutdown();
+		}
+	}
+	
+	private static String truncateFile(String fileName, int rowsPerRead, RetainBehavior retainBehavior,
+			boolean discardOutput, WaitStrategy waitStrategy) throws Exception {
+		File inputFile = new File(fileName);
+		File outputFile = new File(inputFile.getParent(), "truncated_" + inputFile.getName());
+		boolean interleaved = rowsPerRead == 8;
+		
+		try (ByteFastqReader in = new ByteFastqReader(ParallelGzipInputStream.open(fileName));
+				FastqWriter out = new FastqWriter(discardOutput ? new DiscardingOutputStream()
+						: new ParallelGzipOutputStream(new FileOutputStream(outputFile)))) {
+			// the retain behaviors aren't thread safe, so they stay on the parsing thread
+			new Pipeline<>(ReadBatch::new, waitStrategy)
+					.source("parser", batch -> readBatch(in, interleaved, retainBehavior, batch))
+					.sink("writer", batch -> {
+						for (int i = 0; i < batch.size; i++) {
+							Read read = batch.reads[i];
+							out.writeRecord(read, 0);
+							if (interleaved) {
+								out.writeRecord(read, 4);
+							}
+						}
+					})
+					.run();
 		}
 		return outputFile.getCanonicalPath();
 	}
+	
+	// Fills the batch with the next reads that should be kept, returning false once the input runs out.
+	// Interleaved reads keep the second record in the reverse lines.
+	private static boolean readBatch(ByteFastqReader in, boolean interleaved, RetainBehavior retainBehavior, 
+			ReadBatch batch) throws IOException {
+		batch.clear();
+		while (!batch.isFull()) {
+			Read read = batch.next();
+			if (!in.readRecord(batch, read, 0)) {
+				return false;
+			}
+			if (interleaved && !in.readRecord(batch, read, 4)) {
+				read.lineLens[4] = 0;
+				read.lineLens[5] = 0;
+				read.lineLens[6] = 0;
+				read.lineLens[7] = 0;
+			}
+			if (retainBehavior.keepRead(read.buf, read.lineStarts[0], read.lineLens[0])) {
+				batch.keep();
+			}
+		}
+		return true;
+	}
 }
@@ -1,6 +1,9 @@
 import java.io.BufferedReader;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.zip.GZIPInputStream;
 
 import org.junit.Test;
@@ -27,6 +30,86 @@ public class DownsamplerTest {
 		checkOutput(1, false, "testBackwards.gz");
 	}
 	
+	@Test
+	public void retainByReadNameTest() throws Exception {
+		DemultiplexerTest.setUpTestFiles();
+		DemultiplexerTest.clearOldFiles();
+		
+		// every read in the test files has the same name, so they're all kept or all dropped, in both files
+		DemultiplexerTest.createTestConfig(true, "percentToRetain=50", "retainByReadName=true", "retainSeed=7");
+		Downsampler.main(new String[] {"test.config"});
+		byte[] header = "@A00589:100:HLKHHDMXX:1:1101:1217:1000:1:N:0:GACTAGGAGC+TAGTACAGGC".getBytes();
+		boolean kept = new RetainByNameHash(50, 7).keepRead(header, header.length);
+		checkOutput(kept ? 3 : 0, true, "testForward.gz");
+		checkOutput(kept ? 3 : 0, true, "testBackwards.gz");
+	}
+	
+	@Test
+	public void readsToRetainTest() throws Exception {
+		DemultiplexerTest.setUpTestFiles();
+		DemultiplexerTest.clearOldFiles();
+		
+		DemultiplexerTest.createTestConfig(true, "readsToRetain=2");
+		Downsampler.main(new String[] {"test.config"});
+		checkOutput(2, true, "testForward.gz");
+		checkOutput(2, true, "testBackwards.gz");
+	}
+	
+	@Test
+	public void nestedPercentsTest() throws Exception {
+		DemultiplexerTest.setUpTestFiles();
+		DemultiplexerTest.clearOldFiles();
+		
+		DemultiplexerTest.createTestConfig(true, "percentToRetain=0,100");
+		Downsampler.main(new String[] {"test.config"});
+		checkOutput(0, true, "0_testForward.gz");
+		checkOutput(0, true, "0_testBackwards.gz");
+		checkOutput(3, true, "100_testForward.gz");
+		checkOutput(3, true, "100_testBackwards.gz");
+		
+		// enough distinct reads to check the subsamples are nested, and that pairs stay together
+		int nReads = 2000;
+		writeReads("nestedForward.gz", nReads, "AAAA");
+		writeReads("nestedReverse.gz", nReads, "CCCC");
+		DemultiplexerTest.createTestConfig(true, "percentToRetain=10,50", "sourceFileForward=nestedForward.gz", 
+				"sourceFileReverse=nestedReverse.gz");
+		Downsampler.main(new String[] {"test.config"});
+		List<String> small = readHeaders("truncated_10_nestedForward.gz");
+		List<String> big = readHeaders("truncated_50_nestedForward.gz");
+		assert small.equals(readHeaders("truncated_10_nestedReverse.gz"));
+		assert big.equals(readHeaders("truncated_50_nestedReverse.gz"));
+		assert big.containsAll(small);
+		assert small.size() > nReads / 20 && small.size() < nReads / 5;
+		assert big.size() > nReads * 2 / 5 && big.size() < nReads * 3 / 5;
+	}
+	
+	private void writeReads(String file, int nReads, String sequence) throws Exception {
+		try (FastqWriter out = new FastqWriter(new ParallelGzipOutputStream(new FileOutputStream(file)))) {
+			for (int i = 0; i < nReads; i++) {
+				byte[] header = ("@A00589:100:HLKHHDMXX:1:1101:" + i + ":1000").getBytes();
+				out.writeLine(header, 0, header.length);
+				out.writeLine(sequence.getBytes(), 0, sequence.length());
+				out.writeLine("+".getBytes(), 0, 1);
+				out.writeLine("FFFF".getBytes(), 0, 4);
+			}
+		}
+	}
+	
+	private List<String> readHeaders(String file) throws Exception {
+		List<String> headers = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new GZIPInputStream(new FileInputStream(file))))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				headers.add(line);
+				reader.readLine();
+				reader.readLine();
+				reader.readLine();
+			}
+		}
+		return headers;
+	}
+	
 	private void checkOutput(int numExpected, boolean exact, String suffix) throws Exception {
 		BufferedReader reader = new BufferedReader(new InputStreamReader(
 				new GZIPInputStream(new FileInputStream("truncated_" + suffix))));
@@ -0,0 +1,80 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Assembles FASTQ output by copying the raw ASCII lines into a byte buffer, and hands the underlying
+// (usually compressing) stream whole blocks at a time instead of a write call per line.
+// Not thread safe - each writer should only be used from one thread at a time.
+public class FastqWriter implements Closeable {
+
+	static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+	private final OutputStream out;
+	private final byte[] buf;
+	private int pos = 0;
+
+	public FastqWriter(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+
+	public FastqWriter(OutputStream out, int bufferSize) {
+		this.out = out;
+		this.buf = new byte[bufferSize];
+	}
+
+	// copies the read's four lines starting at firstLine (0 for the forward read, 4 for the reverse one) through unchanged
+	public void writeRecord(Read read, int firstLine) throws IOException {
+		for (int line = firstLine; line < firstLine + 4; line++) {
+			writeLine(read.buf, read.lineStarts[line], read.lineLens[line]);
+		}
+	}
+
+	public void writeLine(byte[] line, int off, int len) throws IOException {
+		put(line, off, len);
+		put((byte) '\n');
+	}
+
+	// writes prefixLen bytes of prefix (i.e. a barcode or its quality scores) in front of the line
+	public void writeLine(byte[] prefix, int prefixOff, int prefixLen, byte[] line, int off, int len) throws IOException {
+		put(prefix, prefixOff, prefixLen);
+		put(line, off, len);
+		put((byte) '\n');
+	}
+
+	private void put(byte[] src, int off, int len) throws IOException {
+		if (len > buf.length - pos) {
+			flushBuffer();
+			if (len > buf.length) {
+				out.write(src, off, len);
+				return;
+			}
+		}
+		System.arraycopy(src, off, buf, pos, len);
+		pos += len;
+	}
+
+	private void put(byte b) throws IOException {
+		if (pos == buf.length) {
+			flushBuffer();
+		}
+		buf[pos++] = b;
+	}
+
+	private void flushBuffer() throws IOException {
+		if (pos > 0) {
+			out.write(buf, 0, pos);
+			pos = 0;
+		}
+	}
+
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flushBuffer();
+		out.close();
+	}
+}
@@ -1,33 +1,228 @@
+import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.zip.GZIPOutputStream;
 
-// Used for mocking out a data set to compare performance across different implementations
+/**
+ * Used for mocking out a data set to compare performance across different implementations. Writes paired reads
+ * (forward.gz and reverse.gz, or forward_L001.gz, reverse_L001.gz... when split into several lanes) and a
+ * barcodes.txt with a sample for every barcode, all options given on the command line as <option>=<value>:
+ *
+ * reads - how many pairs to write (default 1000000)
+ * readLength - the length of every read (default 150)
+ * barcodes - how many barcodes, i.e. samples, there are (default 96). They're 4 to 8 bases long, fewer of them
+ *   short ones the more there are, and none of them is the start of another one
+ * skew - how uneven the samples are: sample i gets a share of the reads proportional to 1 / i^skew (default 0, even)
+ * errorRate - the chance of any base being substituted, or read as an N (default 0.002)
+ * lowQualityRate - the chance of any base having a low quality score (default 0.05). Substituted bases are
+ *   low quality half the time
+ * headerMismatchRate - the chance of a pair's headers not matching (default 0.01)
+ * files - how many lanes to split the reads between (default 1)
+ * bgzip - true|false, compress the reads in blocks, like bgzip, instead of plain gzip (default false)
+ * seed - the seed everything's generated from (default 0)
+ * directory - where to write the files (default the working directory)
+ */
 public class GenerateTestData {
-	
-	static String[] barcodes = new String[] {"AAAA", "ACTG", "AGTCA", "GCTAC", "CTGACAGT", "TAGCG"};
-	
+
+	private static final String[] OVERHANGS = {"CAGC", "CTGC"};
+	private static final byte[] BASES = "ACGT".getBytes(StandardCharsets.US_ASCII);
+	// roughly what a NovaSeq's binned quality scores look like, the low ones being below ':'
+	private static final byte[] HIGH_QUALITIES = "FFFFFFFFF:".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] LOW_QUALITIES = "#,".getBytes(StandardCharsets.US_ASCII);
+
+	final long nReads;
+	final int readLength;
+	final int nBarcodes;
+	final double skew;
+	final double errorRate;
+	final double lowQualityRate;
+	final double headerMismatchRate;
+	final int nFiles;
+	final boolean bgzip;
+	final long seed;
+	final File directory;
+
+	public GenerateTestData(long nReads, int readLength, int nBarcodes, double skew, double errorRate,
+			double lowQualityRate, double headerMismatchRate, int nFiles, boolean bgzip, long seed, File directory) {
+		this.nReads = nReads;
+		this.readLength = readLength;
+		this.nBarcodes = nBarcodes;
+		this.skew = skew;
+		this.errorRate = errorRate;
+		this.lowQualityRate = lowQualityRate;
+		this.headerMismatchRate = headerMismatchRate;
+		this.nFiles = nFiles;
+		this.bgzip = bgzip;
+		this.seed = seed;
+		this.directory = directory;
+		if (readLength < 8 + OVERHANGS[0].length()) {
+			throw new IllegalArgumentException("Reads must be long enough for the longest barcode and overhang");
+		}
+	}
+
+	public static GenerateTestData loadOptions(String[] args) {
+		Map<String, String> props = new HashMap<>();
+		for (String arg : args) {
+			String[] parsed = arg.split("=");
+			props.put(parsed[0], parsed[1]);
+		}
+		return new GenerateTestData(Long.parseLong(props.getOrDefault("reads", "1000000")),
+				Integer.parseInt(props.getOrDefault("readLength", "150")),
+				Integer.parseInt(props.getOrDefault("barcodes", "96")),
+				Double.parseDouble(props.getOrDefault("skew", "0")),
+				Double.parseDouble(props.getOrDefault("errorRate", "0.002")),
+				Double.parseDouble(props.getOrDefault("lowQualityRate", "0.05")),
+				Double.parseDouble(props.getOrDefault("headerMismatchRate", "0.01")),
+				Integer.parseInt(props.getOrDefault("files", "1")),
+				Boolean.parseBoolean(props.getOrDefault("bgzip", "false")),
+				Long.parseLong(props.getOrDefault("seed", "0")),
+				new File(props.getOrDefault("directory", ".")));
+	}
+
 	public static void main(String[] args) throws Exception {
-		GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream("forward.gz"));
-		for (int i = 0; i < 1000000; i++) {
-			out.write("@A00589:100:HLKHHDMXX:1:1101:1217:1000:1:N:0:GACTAGGAGC+TAGTACAGGC\n".getBytes());
-			out.write((barcodes[i % barcodes.length] + "CAGCAAACCCGGGTTTAAA\n").getBytes());
-			out.write("+\n".getBytes());
-			out.write("FFFFFFFFFFFFFFFFFFFF\n".getBytes());
-		}
-		out.close();
-		
-		out = new GZIPOutputStream(new FileOutputStream("reverse.gz"));
-		for (int i = 0; i < 1000000; i++) {
-			out.write("@A00589:100:HLKHHDMXX:1:1101:1217:1000:1:N:0:GACTAGGAGC+TAGTACAGGC\n".getBytes());
-			out.write("CAGCAAACCCGGGTTTAAA\n".getBytes());
-			out.write("+\n".getBytes());
-			out.write("FFFFFFFFFFFFFFFFFFFF\n".getBytes());
-		}
-		out.close();
-		FileOutputStream barcodeOut = new FileOutputStream("barcodes.txt");
-		for (String s : barcodes) {
-			barcodeOut.write((s + "\tfoo\n").getBytes());
-		}
-		barcodeOut.close();
+		GenerateTestData generator = loadOptions(args);
+		generator.generate();
+		System.out.println("Wrote " + generator.nReads + " reads to " + generator.getForwardFiles() + " and "
+				+ generator.getReverseFiles());
+	}
+
+	public List<String> getForwardFiles() {
+		return getFiles("forward");
+	}
+
+	public List<String> getReverseFiles() {
+		return getFiles("reverse");
+	}
+
+	public String getBarcodeFile() {
+		return new File(directory, "barcodes.txt").getPath();
+	}
+
+	private List<String> getFiles(String direction) {
+		List<String> files = new ArrayList<>();
+		for (int lane = 1; lane <= nFiles; lane++) {
+			String name = nFiles == 1 ? direction + ".gz" : String.format("%s_L%03d.gz", direction, lane);
+			files.add(new File(directory, name).getPath());
+		}
+		return files;
+	}
+
+	public void generate() throws IOException {
+		directory.mkdirs();
+		Random rand = new Random(seed);
+		List<String> barcodes = barcodes(nBarcodes, rand);
+		try (Writer barcodeOut = new FileWriter(getBarcodeFile())) {
+			for (int i = 0; i < barcodes.size(); i++) {
+				barcodeOut.write(barcodes.get(i) + "\tsample" + (i + 1) + "\n");
+			}
+		}
+
+		// cumulative shares of the reads, to pick a sample with a binary search
+		double[] cumulative = new double[nBarcodes];
+		double total = 0;
+		for (int i = 0; i < nBarcodes; i++) {
+			total += 1 / Math.pow(i + 1, skew);
+			cumulative[i] = total;
+		}
+
+		List<String> forwardFiles = getForwardFiles();
+		List<String> reverseFiles = getReverseFiles();
+		byte[] forwardRead = new byte[readLength];
+		byte[] reverseRead = new byte[readLength];
+		byte[] forwardQuality = new byte[readLength];
+		byte[] reverseQuality = new byte[readLength];
+		for (int lane = 0; lane < nFiles; lane++) {
+			long nLaneReads = nReads / nFiles + (lane < nReads % nFiles ? 1 : 0);
+			try (OutputStream forward = open(forwardFiles.get(lane)); OutputStream reverse = open(reverseFiles.get(lane))) {
+				for (long i = 0; i < nLaneReads; i++) {
+					int sample = Arrays.binarySearch(cumulative, rand.nextDouble() * total);
+					String barcode = barcodes.get(sample < 0 ? Math.min(-sample - 1, nBarcodes - 1) : sample);
+					String start = barcode + OVERHANGS[rand.nextInt(OVERHANGS.length)];
+					for (int pos = 0; pos < readLength; pos++) {
+						forwardRead[pos] = pos < start.length() ? (byte) start.charAt(pos) : BASES[rand.nextInt(4)];
+						reverseRead[pos] = BASES[rand.nextInt(4)];
+					}
+					addErrors(forwardRead, forwardQuality, rand);
+					addErrors(reverseRead, reverseQuality, rand);
+
+					// a unique name for every pair, from its lane, tile and position
+					String header = "@A00589:100:HLKHHDMXX:" + (lane + 1) + ":" + (1101 + i / 1_000_000) + ":"
+							+ (1000 + (i / 1000) % 1000) + ":" + (1000 + i % 1000);
+					String reverseHeader = rand.nextDouble() < headerMismatchRate ? header + "1" : header;
+					write(forward, header + " 1:N:0:GACTAGGAGC+TAGTACAGGC", forwardRead, forwardQuality);
+					write(reverse, reverseHeader + " 2:N:0:GACTAGGAGC+TAGTACAGGC", reverseRead, reverseQuality);
+				}
+			}
+		}
+	}
+
+	private OutputStream open(String file) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		return bgzip ? new ParallelGzipOutputStream(out) : new GZIPOutputStream(out, 1 << 16);
+	}
+
+	private void addErrors(byte[] read, byte[] quality, Random rand) {
+		for (int pos = 0; pos < read.length; pos++) {
+			boolean lowQuality = rand.nextDouble() < lowQualityRate;
+			if (rand.nextDouble() < errorRate) {
+				// sequencing errors tend to come with low quality scores
+				read[pos] = rand.nextInt(8) == 0 ? (byte) 'N' : BASES[(indexOf(read[pos]) + 1 + rand.nextInt(3)) % 4];
+				lowQuality |= rand.nextBoolean();
+			}
+			quality[pos] = lowQuality ? LOW_QUALITIES[rand.nextInt(LOW_QUALITIES.length)]
+					: HIGH_QUALITIES[rand.nextInt(HIGH_QUALITIES.length)];
+		}
+	}
+
+	private static int indexOf(byte base) {
+		switch (base) {
+		case 'A':
+			return 0;
+		case 'C':
+			return 1;
+		case 'G':
+			return 2;
+		default:
+			return 3;
+		}
+	}
+
+	private static void write(OutputStream out, String header, byte[] read, byte[] quality) throws IOException {
+		out.write(header.getBytes(StandardCharsets.US_ASCII));
+		out.write('\n');
+		out.write(read);
+		out.write("\n+\n".getBytes(StandardCharsets.US_ASCII));
+		out.write(quality);
+		out.write('\n');
+	}
+
+	/**
+	 * Distinct barcodes, none of them the start of another one, like the barcodes of a real plate. Bigger plates
+	 * run out of short barcodes that aren't the start of any of the others, so their barcodes start out longer.
+	 */
+	static List<String> barcodes(int n, Random rand) {
+		int minLen = n <= 96 ? 4 : n <= 384 ? 5 : 6;
+		List<String> barcodes = new ArrayList<>();
+		while (barcodes.size() < n) {
+			StringBuilder bases = new StringBuilder();
+			for (int len = minLen + rand.nextInt(9 - minLen); len > 0; len--) {
+				bases.append((char) BASES[rand.nextInt(4)]);
+			}
+			String barcode = bases.toString();
+			if (barcodes.stream().noneMatch(other -> other.startsWith(barcode) || barcode.startsWith(other))) {
+				barcodes.add(barcode);
+			}
+		}
+		return barcodes;
 	}
 }
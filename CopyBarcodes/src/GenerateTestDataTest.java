@@ -0,0 +1,61 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class GenerateTestDataTest {
+	
+	@Test
+	public void testGenerate() throws Exception {
+		File dir = Files.createTempDirectory("generated").toFile();
+		try {
+			// no errors or mismatched headers, so every read matches its barcode
+			GenerateTestData data = GenerateTestData.loadOptions(new String[] {"reads=1001", "readLength=50", 
+					"barcodes=384", "skew=1", "errorRate=0", "headerMismatchRate=0", "files=2", 
+					"directory=" + dir.getPath()});
+			data.generate();
+			assert data.getForwardFiles().size() == 2;
+			assert data.getForwardFiles().get(1).endsWith("forward_L002.gz");
+			
+			PrefixTree tree = new PrefixTree(Config.loadOptions(new String[] {"minQuality=:", "overhang=CAGC,CTGC"}));
+			Map<String, String> barcodeToSample = new HashMap<>();
+			int nBarcodes = CopyBarcodes.loadBarcodeFile(data.getBarcodeFile(), tree, barcodeToSample).size();
+			assert nBarcodes == 384;
+			
+			ReadBatch batch = new ReadBatch(1);
+			int[] perBarcode = new int[384];
+			int nReads = 0;
+			List<String> reverseFiles = data.getReverseFiles();
+			for (int lane = 0; lane < 2; lane++) {
+				try (ByteFastqReader forward = new ByteFastqReader(ParallelGzipInputStream.open(data.getForwardFiles()
+						.get(lane)));
+						ByteFastqReader reverse = new ByteFastqReader(ParallelGzipInputStream.open(reverseFiles.get(lane)))) {
+					// next() hands back the same read every time, overwriting its lines since it's never kept
+					for (Read read = batch.next(); forward.readRecord(batch, read, 0); read = batch.next()) {
+						boolean hasMate = reverse.readRecord(batch, read, 4);
+						assert hasMate;
+						assert read.lineLens[1] == 50 && read.lineLens[3] == 50 && read.lineLens[7] == 50;
+						assert CopyBarcodes.checkHeaders(read, false);
+						int id = tree.findBarcodeId(read.buf, read.lineStarts[1]);
+						assert id >= 0;
+						perBarcode[id]++;
+						nReads++;
+					}
+				}
+			}
+			assert nReads == 1001;
+			// the first sample gets the most reads
+			for (int count : perBarcode) {
+				assert count <= perBarcode[0];
+			}
+		} finally {
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+}
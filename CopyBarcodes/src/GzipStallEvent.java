@@ -0,0 +1,19 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+// A writer waiting for a block to be compressed, because it got too far ahead of the GzipWorkerPool (or is flushing)
+@Name("gbsTools.GzipStall")
+@Label("Gzip Stall")
+@Category({"gbsTools", "Output"})
+@Threshold("1 ms")
+@Description("A writer waiting for the compressors to catch up")
+class GzipStallEvent extends jdk.jfr.Event {
+	@Label("File")
+	String file;
+	
+	@Label("Blocks In Flight")
+	int blocksInFlight;
+}
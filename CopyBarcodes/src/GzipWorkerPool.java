@@ -0,0 +1,24 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Shared pool for inflating/deflating independent gzip blocks. The threads are daemons so that
+// callers never have to shut the pool down (the tools' main methods get called repeatedly from the tests)
+public class GzipWorkerPool {
+
+	private static final int N_THREADS = Runtime.getRuntime().availableProcessors();
+	private static final AtomicInteger threadCount = new AtomicInteger(0);
+	private static final ExecutorService POOL = Executors.newFixedThreadPool(N_THREADS, r -> {
+		Thread thread = new Thread(r, "gzip-worker-" + threadCount.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public static ExecutorService get() {
+		return POOL;
+	}
+
+	public static int size() {
+		return N_THREADS;
+	}
+}
@@ -0,0 +1,291 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Matches barcodes by packing the start of the read into a long, 2 bits a base, and looking it up in a hash table
+ * per barcode + overhang length. Every read one base off from a barcode + overhang is worked out up front, so fuzzy
+ * matching is a lookup per length as well, rather than a search over every way of changing a low quality base.
+ * 
+ * Gives the same answers as the tree as long as the barcodes are far enough apart that a read can't be one base
+ * off from two of them (see CopyBarcodes.getMinEditDistance). The skip reasons are a little narrower: a read only
+ * counts as skipped for quality if changing a high quality base would have fixed it.
+ * Only handles barcodes and overhangs made of A, C, G and T. An N in the read counts as the one wrong base.
+ */
+public class KmerBarcodeIndex implements BarcodeMatcher {
+	
+	private static final byte[] CODES = new byte[256];
+	static {
+		Arrays.fill(CODES, (byte) -1);
+		CODES['A'] = 0;
+		CODES['C'] = 1;
+		CODES['G'] = 2;
+		CODES['T'] = 3;
+	}
+	
+	// neighbor entries pack the barcode id, where the base is different and what it should be into an int
+	private static final int ID_BITS = 20;
+	private static final int ID_MASK = (1 << ID_BITS) - 1;
+	private static final int POS_SHIFT = ID_BITS;
+	private static final int BASE_SHIFT = POS_SHIFT + 6;
+	private static final int AMBIGUOUS = 1 << (BASE_SHIFT + 2);
+	
+	private final int[] lengths; // barcode + overhang lengths, shortest first, the same order the tree finds them in
+	private final LongIntMap[] exact; // indexed by length
+	private final LongIntMap[] neighbors;
+	private final int[] barcodeLens;
+	private final int maxBarcodeLen;
+	private final char minQuality;
+	
+	// scratch space for the fuzzy match candidates
+	private final int[] hitPos;
+	private final int[] hitBase;
+	private final int[] hitId;
+	private boolean highQuality;
+	private boolean duplicate;
+
+	public KmerBarcodeIndex(List<byte[]> barcodes, Set<String> overhangs, int maxBarcodeLen, char minQuality) {
+		if (maxBarcodeLen > 32) {
+			throw new IllegalArgumentException("Barcodes and overhangs longer than 32 bases don't fit in a long");
+		}
+		if (barcodes.size() > ID_MASK) {
+			throw new IllegalArgumentException("Too many barcodes: " + barcodes.size());
+		}
+		this.maxBarcodeLen = maxBarcodeLen;
+		this.minQuality = minQuality;
+		this.barcodeLens = new int[barcodes.size()];
+		this.exact = new LongIntMap[maxBarcodeLen + 1];
+		this.neighbors = new LongIntMap[maxBarcodeLen + 1];
+		
+		Set<Integer> allLengths = new TreeSet<>();
+		for (int id = 0; id < barcodes.size(); id++) {
+			barcodeLens[id] = barcodes.get(id).length;
+			for (String overhang : overhangs) {
+				allLengths.add(barcodes.get(id).length + overhang.length());
+			}
+		}
+		lengths = allLengths.stream().filter(len -> len <= maxBarcodeLen).mapToInt(len -> len).toArray();
+		for (int len : lengths) {
+			exact[len] = new LongIntMap(barcodes.size() * overhangs.size());
+			neighbors[len] = new LongIntMap(barcodes.size() * overhangs.size() * len * 3);
+		}
+		
+		for (int id = 0; id < barcodes.size(); id++) {
+			for (String overhang : overhangs) {
+				byte[] full = (new String(barcodes.get(id), StandardCharsets.US_ASCII) + overhang)
+						.getBytes(StandardCharsets.US_ASCII);
+				if (full.length <= maxBarcodeLen) {
+					addBarcode(id, full);
+				}
+			}
+		}
+		
+		hitPos = new int[lengths.length * 4];
+		hitBase = new int[hitPos.length];
+		hitId = new int[hitPos.length];
+	}
+	
+	// shares the tables, which are read-only once built
+	private KmerBarcodeIndex(KmerBarcodeIndex other) {
+		lengths = other.lengths;
+		exact = other.exact;
+		neighbors = other.neighbors;
+		barcodeLens = other.barcodeLens;
+		maxBarcodeLen = other.maxBarcodeLen;
+		minQuality = other.minQuality;
+		hitPos = new int[other.hitPos.length];
+		hitBase = new int[hitPos.length];
+		hitId = new int[hitPos.length];
+	}
+	
+	// another matcher on the same tables, for another thread
+	public KmerBarcodeIndex newMatcher() {
+		return new KmerBarcodeIndex(this);
+	}
+	
+	private void addBarcode(int id, byte[] full) {
+		long key = 0;
+		for (byte base : full) {
+			if (CODES[base & 0xff] < 0) {
+				throw new IllegalArgumentException("Barcodes and overhangs can only contain A, C, G and T, found " 
+						+ (char) (base & 0xff));
+			}
+			key = key << 2 | CODES[base & 0xff];
+		}
+		int len = full.length;
+		exact[len].put(key, id);
+		
+		for (int pos = 0; pos < len; pos++) {
+			int shift = 2 * (len - 1 - pos);
+			int base = CODES[full[pos] & 0xff];
+			for (int other = 0; other < 4; other++) {
+				if (other != base) {
+					long neighbor = key & ~(3L << shift) | ((long) other << shift);
+					int entry = id | pos << POS_SHIFT | base << BASE_SHIFT;
+					int existing = neighbors[len].get(neighbor);
+					if (existing < 0) {
+						neighbors[len].put(neighbor, entry);
+					} else if ((existing & ID_MASK) != id) {
+						// one base off from two barcodes, there's no telling which one it was
+						neighbors[len].put(neighbor, existing | AMBIGUOUS);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public int findBarcodeId(byte[] read, int offset) {
+		long key = 0;
+		int next = 0;
+		for (int pos = 0; next < lengths.length; pos++) {
+			int code = CODES[read[offset + pos] & 0xff];
+			if (code < 0) {
+				return NO_MATCH;
+			}
+			key = key << 2 | code;
+			if (pos + 1 == lengths[next]) {
+				int id = exact[lengths[next]].get(key);
+				if (id >= 0) {
+					return id;
+				}
+				next++;
+			}
+		}
+		return NO_MATCH;
+	}
+
+	@Override
+	public int fuzzyMatchId(byte[] read, int readOffset, byte[] quality, int qualityOffset) {
+		int id = findBarcodeId(read, readOffset);
+		if (id >= 0) {
+			return id;
+		}
+		highQuality = false;
+		duplicate = false;
+		
+		// which positions are allowed to be wrong
+		long lowQuality = 0;
+		for (int pos = 0; pos < maxBarcodeLen; pos++) {
+			if (quality[qualityOffset + pos] < minQuality) {
+				lowQuality |= 1L << pos;
+			}
+		}
+		
+		// find the barcodes the read is one base off from, at each length
+		int nHits = 0;
+		long key = 0;
+		int nPos = -1;
+		int next = 0;
+		for (int pos = 0; next < lengths.length; pos++) {
+			int code = CODES[read[readOffset + pos] & 0xff];
+			if (code < 0) {
+				if (nPos >= 0) {
+					break; // two unknown bases, nothing's going to match
+				}
+				nPos = pos;
+				code = 0;
+			}
+			key = key << 2 | code;
+			if (pos + 1 == lengths[next]) {
+				int len = lengths[next++];
+				if (nPos < 0) {
+					int entry = neighbors[len].get(key);
+					if (entry >= 0) {
+						hitPos[nHits] = entry >>> POS_SHIFT & 0x3f;
+						hitBase[nHits] = entry >>> BASE_SHIFT & 3;
+						// a second barcode at the same position, so it can't be unique
+						hitId[nHits++] = (entry & AMBIGUOUS) != 0 ? -1 : entry & ID_MASK;
+					}
+				} else {
+					// the unknown base is the wrong one, try each of the real ones
+					int shift = 2 * (len - 1 - nPos);
+					for (int base = 0; base < 4; base++) {
+						int match = exact[len].get(key | ((long) base << shift));
+						if (match >= 0) {
+							hitPos[nHits] = nPos;
+							hitBase[nHits] = base;
+							hitId[nHits++] = match;
+						}
+					}
+				}
+			}
+		}
+		
+		// same order as the tree: the furthest in position first, and the shortest barcode for any given change
+		for (int pos = maxBarcodeLen - 1; pos >= 0 && nHits > 0; pos--) {
+			int nBarcodesFound = 0;
+			int foundId = NO_MATCH;
+			int basesSeen = 0;
+			boolean any = false;
+			for (int i = 0; i < nHits; i++) {
+				if (hitPos[i] != pos || (basesSeen & 1 << hitBase[i]) != 0) {
+					continue;
+				}
+				any = true;
+				basesSeen |= 1 << hitBase[i];
+				if (hitId[i] < 0) {
+					nBarcodesFound += 2;
+				} else {
+					foundId = hitId[i];
+					// we don't care which overhang it is
+					if (pos < barcodeLens[foundId]) {
+						nBarcodesFound++;
+					}
+				}
+			}
+			if (!any) {
+				continue;
+			}
+			if ((lowQuality & 1L << pos) == 0) {
+				highQuality = true;
+			} else if (nBarcodesFound <= 1 && foundId >= 0) {
+				return foundId;
+			} else if (nBarcodesFound > 1) {
+				duplicate = true;
+			}
+		}
+		
+		if (duplicate) {
+			return SKIPPED_DUPLICATE;
+		} else if (highQuality) {
+			return SKIPPED_QUALITY;
+		}
+		return SKIPPED_MULTIPLE_BAD_READS;
+	}
+	
+	// open addressing long -> int map, for non-negative values
+	private static final class LongIntMap {
+		private final long[] keys;
+		private final int[] values;
+		private final int shift;
+		
+		LongIntMap(int expectedSize) {
+			int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) << 1; // at most half full
+			keys = new long[capacity];
+			values = new int[capacity];
+			Arrays.fill(values, -1);
+			shift = 64 - Integer.numberOfTrailingZeros(capacity);
+		}
+		
+		private int slot(long key) {
+			int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+			while (values[slot] >= 0 && keys[slot] != key) {
+				slot = (slot + 1) & (values.length - 1);
+			}
+			return slot;
+		}
+		
+		int get(long key) {
+			return values[slot(key)];
+		}
+		
+		void put(long key, int value) {
+			int slot = slot(key);
+			keys[slot] = key;
+			values[slot] = value;
+		}
+	}
+}
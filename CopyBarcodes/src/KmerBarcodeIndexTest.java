@@ -0,0 +1,58 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class KmerBarcodeIndexTest {
+	
+	@Test
+	public void testSameAsTree() throws Exception {
+		Random rand = new Random(11);
+		PrefixTree tree = new PrefixTree(Config.loadOptions(new String[] {"default.config"}));
+		// a typical plate: barcodes of different lengths, none of them within 2 bases of each other
+		List<String> barcodes = new ArrayList<>();
+		while (barcodes.size() < 96) {
+			String barcode = randomBases(rand, 4 + rand.nextInt(5), "ACGT");
+			Set<String> candidates = new HashSet<>(barcodes);
+			candidates.add(barcode);
+			if (candidates.size() > barcodes.size() && CopyBarcodes.getMinEditDistance(candidates) >= 3) {
+				barcodes.add(barcode);
+				tree.addBarcode(barcode);
+			}
+		}
+		BarcodeMatcher treeMatcher = tree.newTreeMatcher();
+		BarcodeMatcher kmer = tree.newKmerMatcher();
+		
+		String[] overhangs = {"CAGC", "CTGC"};
+		int nFuzzed = 0;
+		for (int i = 0; i < 200_000; i++) {
+			byte[] read = (barcodes.get(rand.nextInt(barcodes.size())) + overhangs[rand.nextInt(2)] 
+					+ randomBases(rand, 20, "ACGT")).getBytes();
+			for (int nErrors = rand.nextInt(3); nErrors > 0; nErrors--) {
+				read[rand.nextInt(12)] = (byte) "ACGTN".charAt(rand.nextInt(5));
+			}
+			byte[] quality = randomBases(rand, read.length, "#+5?FIJ").getBytes();
+			
+			assert kmer.findBarcodeId(read) == treeMatcher.findBarcodeId(read);
+			int expected = treeMatcher.fuzzyMatchId(read, quality);
+			int actual = kmer.fuzzyMatchId(read, quality);
+			if (expected >= 0) {
+				nFuzzed++;
+			}
+			// the skip reasons can differ, but never whether (and to which barcode) a read gets fixed
+			assert Math.max(expected, -1) == Math.max(actual, -1) : new String(read) + " " + new String(quality);
+		}
+		assert nFuzzed > 0;
+	}
+	
+	private static String randomBases(Random rand, int len, String bases) {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < len; i++) {
+			result.append(bases.charAt(rand.nextInt(bases.length())));
+		}
+		return result.toString();
+	}
+}
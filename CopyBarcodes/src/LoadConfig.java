@@ -4,12 +4,19 @@ public class LoadConfig {
 	private final boolean debug;
 	private final boolean reverseMissing;
 	private final RetainBehavior retainBehavior;
+	private final int nMatchThreads;
 	
 	public LoadConfig(boolean fuzzyMatch, boolean debug, boolean reverseMissing, RetainBehavior retainBehavior) {
+		this(fuzzyMatch, debug, reverseMissing, retainBehavior, 1);
+	}
+	
+	public LoadConfig(boolean fuzzyMatch, boolean debug, boolean reverseMissing, RetainBehavior retainBehavior,
+			int nMatchThreads) {
 		this.fuzzyMatch = fuzzyMatch;
 		this.debug = debug;
 		this.reverseMissing = reverseMissing;
 		this.retainBehavior = retainBehavior;
+		this.nMatchThreads = nMatchThreads;
 	}
 	
 	public boolean isFuzzyMatch() {
@@ -27,4 +34,8 @@ public class LoadConfig {
 	public RetainBehavior getRetainBehavior() {
 		return retainBehavior;
 	}
+	
+	public int getNumMatchThreads() {
+		return nMatchThreads;
+	}
 }
\ No newline at end of file
@@ -2,53 +2,221 @@ import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 
+// Treats an ordered list of gzipped files as one concatenated stream.
+// Every file is decompressed by a thread of its own into a small set of large buffers, and the next file in the
+// list starts decompressing as soon as the current one does, so by the time the reader gets to the end of a file
+// the next one's first buffers are already waiting. The thread parsing the stream never waits on decompression
+// or on switching files (as long as decompression keeps up).
+// Given a StageMetrics, the read-ahead threads record how long they spend filling buffers, and how long the
+// current file's thread spends waiting for the reader to hand buffers back.
 public class MultiFileInputStream extends InputStream {
 
+	static final int BUFFER_SIZE = 1 << 20;
+	private static final int N_BUFFERS = 4; // one being read, one being filled, and some slack for bursts
+
+	private static class Buffer {
+		final byte[] data;
+		int len;
+
+		Buffer(int size) {
+			data = new byte[size];
+		}
+	}
+
+	// One file being decompressed ahead of the reader. Each file has buffers of its own, so the next file
+	// filling up can never starve the current one of buffers.
+	private class FileReader {
+		final String file;
+		// same pattern as the read pools: empty buffers go back to the reader thread, filled ones come here
+		final ArrayBlockingQueue<Buffer> emptyBuffers;
+		final ArrayBlockingQueue<Buffer> filledBuffers = new ArrayBlockingQueue<>(N_BUFFERS + 1);
+		final Thread thread;
+		volatile Throwable failure = null;
+		// when the reader got to this file, as System.nanoTime(), 0 while it's still being read ahead. Only the
+		// current file waiting on the reader means the reader is behind, the next one is meant to wait
+		volatile long currentSince = 0;
+
+		FileReader(String file, ArrayBlockingQueue<Buffer> emptyBuffers) {
+			this.file = file;
+			this.emptyBuffers = emptyBuffers;
+			thread = new Thread(this::readAhead, "read-ahead-" + file);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		private void readAhead() {
+			try (InputStream in = open(file)) {
+				copyFile(in);
+			} catch (InterruptedException e) {
+				// closed before the end of the input, nobody is waiting on us
+				return;
+			} catch (IOException | RuntimeException | Error e) {
+				// whatever went wrong has to reach the reader, which would otherwise wait for the end forever
+				failure = e;
+			}
+			Buffer end = new Buffer(0);
+			end.len = -1;
+			filledBuffers.add(end);
+		}
+
+		private void copyFile(InputStream in) throws IOException, InterruptedException {
+			while (true) {
+				long start = metrics == null ? 0 : System.nanoTime();
+				Buffer buffer = emptyBuffers.take();
+				long taken = metrics == null ? 0 : System.nanoTime();
+				long since = currentSince;
+				if (metrics != null && since != 0) {
+					metrics.recordBlocked(Math.max(0, taken - Math.max(start, since)));
+				}
+				buffer.len = 0;
+				int n = 0;
+				while (buffer.len < buffer.data.length
+						&& (n = in.read(buffer.data, buffer.len, buffer.data.length - buffer.len)) >= 0) {
+					buffer.len += n;
+				}
+				if (metrics != null) {
+					metrics.recordEntry(System.nanoTime() - taken, 0, buffer.len);
+				}
+				if (buffer.len > 0) {
+					filledBuffers.put(buffer);
+				} else {
+					emptyBuffers.put(buffer);
+				}
+				if (n < 0) {
+					return;
+				}
+			}
+		}
+	}
+
 	private final List<String> files;
-	private int index = 0;
-	private InflaterInputStream current = null;
-	
+	private final LongAdder bytesRead; // compressed, null if nobody's counting
+	private final StageMetrics metrics; // null if nobody's measuring
+
+	private int fileIndex = 0;
+	private FileReader reader;
+	private FileReader nextReader;
+	private Buffer current = null;
+	private int pos = 0;
+	private boolean finished = false;
+
 	public static InputStream getStream(List<String> files) throws IOException {
+		return getStream(files, null);
+	}
+
+	// the same, adding the number of compressed bytes read from the files to bytesRead as it goes
+	public static InputStream getStream(List<String> files, LongAdder bytesRead) throws IOException {
+		return getStream(files, bytesRead, null);
+	}
+
+	// the same, also recording how busy decompression is in metrics (see PipelineMetrics.getInflate)
+	public static InputStream getStream(List<String> files, LongAdder bytesRead, StageMetrics metrics) 
+			throws IOException {
 		if (files.isEmpty()) {
 			return new ByteArrayInputStream(new byte[] {});
 		}
-		if (files.size() == 1) {
-			return new GZIPInputStream(
-					new FileInputStream(files.get(0)));
-		}
-		return new MultiFileInputStream(files);
+		return new MultiFileInputStream(files, bytesRead, metrics);
 	}
 
-	private MultiFileInputStream(List<String> files) {
+	private MultiFileInputStream(List<String> files, LongAdder bytesRead, StageMetrics metrics) {
 		this.files = files;
+		this.bytesRead = bytesRead;
+		this.metrics = metrics;
+		reader = new FileReader(files.get(0), newBuffers());
+		reader.currentSince = System.nanoTime();
+		nextReader = files.size() > 1 ? new FileReader(files.get(1), newBuffers()) : null;
+	}
+
+	private static ArrayBlockingQueue<Buffer> newBuffers() {
+		ArrayBlockingQueue<Buffer> buffers = new ArrayBlockingQueue<>(N_BUFFERS);
+		for (int i = 0; i < N_BUFFERS; i++) {
+			buffers.add(new Buffer(BUFFER_SIZE));
+		}
+		return buffers;
+	}
+
+	private InputStream open(String file) throws IOException {
+		if (bytesRead == null) {
+			return ParallelGzipInputStream.open(file);
+		}
+		return ParallelGzipInputStream.open(new CountingInputStream(new FileInputStream(file), bytesRead));
 	}
 
 	@Override
 	public int read() throws IOException {
-		setupStream();
-		return current.read();
+		if (!ensureData()) {
+			return -1;
+		}
+		return current.data[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!ensureData()) {
+			return -1;
+		}
+		int n = Math.min(len, current.len - pos);
+		System.arraycopy(current.data, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return current == null || finished ? 0 : current.len - pos;
 	}
 
-	private void setupStream() throws IOException {
-		if (current == null || current.available() == 0) {
-			if (index < files.size()) {
-				current = new GZIPInputStream(
-						new FileInputStream(files.get(index)));
-				index++;
+	private boolean ensureData() throws IOException {
+		if (finished) {
+			return false;
+		}
+		while (current == null || pos == current.len) {
+			if (current != null) {
+				reader.emptyBuffers.add(current);
+			}
+			try {
+				current = reader.filledBuffers.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for input");
+			}
+			pos = 0;
+			if (current.len < 0) {
+				current = null;
+				if (reader.failure != null) {
+					finished = true;
+					throw new IOException("Failed to read " + reader.file, reader.failure);
+				}
+				if (nextReader == null) {
+					finished = true;
+					return false;
+				}
+				// on to the file that's been decompressing in the meantime, and the one after it starts
+				// with the buffers of the one that just finished
+				fileIndex++;
+				FileReader done = reader;
+				reader = nextReader;
+				reader.currentSince = System.nanoTime();
+				nextReader = fileIndex + 1 < files.size() ? new FileReader(files.get(fileIndex + 1), done.emptyBuffers)
+						: null;
 			}
 		}
+		return true;
 	}
-	
+
 	@Override
 	public void close() throws IOException {
-		if (current != null) {
-			current.close();
+		reader.thread.interrupt();
+		if (nextReader != null) {
+			nextReader.thread.interrupt();
 		}
 	}
-	
-	
 }
@@ -6,6 +6,11 @@ public class NoOpProgressTracker implements ProgressTracker {
 		// do nothing
 	}
 
+	@Override
+	public void noteProgress(int nReads) {
+		// do nothing
+	}
+
 	@Override
 	public void printProgress() {
 		// do nothing
@@ -1,50 +1,137 @@
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.GZIPOutputStream;
+import java.io.OutputStream;
 
+// The files for a sample only get opened on demand (see OutputFilePool); while they're closed, reads get
+// buffered in memory. Every time they're reopened, they're appended to, which adds another gzip member.
+// Not thread safe - Demultiplexer makes sure each sample is only written to by one thread
 public class OutputFile {
-	private final BufferedWriter forward;
-	private final BufferedWriter reverse;
-	private AtomicInteger nWritten = new AtomicInteger(0);
+	// how much gets buffered for each file while it's closed, before it has to be reopened
+	static final int MAX_PENDING = 1 << 14;
+	private static final int PENDING_BUFFER_SIZE = 1 << 10;
+	
+	private final String name;
+	private final String forwardName;
+	private final String reverseName;
+	private boolean append;
+	private final boolean discard;
+	private final PipelineMetrics metrics; // null if nobody's measuring
+	private final ByteArrayOutputStream pendingForward = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream pendingReverse = new ByteArrayOutputStream();
+	// either writing to the files, or to the pending buffers while they're closed
+	private FastqWriter forward;
+	private FastqWriter reverse;
+	private boolean open = false;
+	private int nWritten = 0;
 
 	public OutputFile(String pop, String sample, boolean alignmentFile, boolean append) throws IOException {
-		String forwardName = pop + "_" + sample + (alignmentFile ? ".F" : ".R1") + ".fq.gz";
-		String reverseName = pop + "_" + sample + (alignmentFile ? ".R" : ".R2")  + ".fq.gz";
-
-		forward = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(forwardName, append))));
-		reverse = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(reverseName, append))));
+		this(pop, sample, alignmentFile, append, false);
+	}
+	
+	// with discard, the reads still go through all the same buffering, but the files are never written
+	public OutputFile(String pop, String sample, boolean alignmentFile, boolean append, boolean discard)
+			throws IOException {
+		this(pop, sample, alignmentFile, append, discard, null);
+	}
+	
+	// the same, with the compression and writes measured in metrics
+	public OutputFile(String pop, String sample, boolean alignmentFile, boolean append, boolean discard,
+			PipelineMetrics metrics) throws IOException {
+		name = pop + "_" + sample;
+		forwardName = name + (alignmentFile ? ".F" : ".R1") + ".fq.gz";
+		reverseName = name + (alignmentFile ? ".R" : ".R2")  + ".fq.gz";
+		this.append = append;
+		this.discard = discard;
+		this.metrics = metrics;
+		bufferPending();
+	}
+	
+	public boolean isOpen() {
+		return open;
+	}
+	
+	// roughly how much has been buffered since the files were closed (give or take what the writers are holding on to)
+	public int getNumPending() {
+		return Math.max(pendingForward.size(), pendingReverse.size());
+	}
+	
+	// opens the files, and writes out whatever was buffered while they were closed
+	public void open() throws IOException {
+		OutputFileEvent event = new OutputFileEvent();
+		event.begin();
+		forward.flush();
+		reverse.flush();
+		long buffered = pendingForward.size() + pendingReverse.size();
+		forward = openFile(forwardName, pendingForward);
+		reverse = openFile(reverseName, pendingReverse);
+		append = true; // from now on, don't overwrite what's already been written
+		open = true;
+		commit(event, "open", buffered);
+	}
+	
+	private void commit(OutputFileEvent event, String action, long buffered) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.sample = name;
+			event.action = action;
+			event.buffered = buffered;
+			event.commit();
+		}
+	}
+	
+	private FastqWriter openFile(String name, ByteArrayOutputStream pending) throws IOException {
+		OutputStream out = discard ? new DiscardingOutputStream()
+				: new ParallelGzipOutputStream(new FileOutputStream(name, append), name, metrics);
+		pending.writeTo(out);
+		pending.reset();
+		return new FastqWriter(out);
+	}
+	
+	// closes the files (finishing their gzip members) and buffers what's written until they're opened again
+	public void closeFiles() throws IOException {
+		if (open) {
+			OutputFileEvent event = new OutputFileEvent();
+			event.begin();
+			forward.close();
+			reverse.close();
+			bufferPending();
+			commit(event, "close", 0);
+		}
+	}
+	
+	private void bufferPending() {
+		forward = new FastqWriter(pendingForward, PENDING_BUFFER_SIZE);
+		reverse = new FastqWriter(pendingReverse, PENDING_BUFFER_SIZE);
+		open = false;
 	}
 
+	// writes out everything that's still buffered - samples that never got any reads still get (empty) files
 	public void close() throws IOException {
+		if (!open) {
+			open();
+		}
+		OutputFileEvent event = new OutputFileEvent();
+		event.begin();
 		forward.close();
 		reverse.close();
+		open = false;
+		commit(event, "close", 0);
 	}
 
-	public synchronized void write(Read read, int matchedLen) throws IOException {
-		forward.write(read.forwardLineSet[0], 0, read.lineLens[0]);
-		forward.newLine();
-		forward.write(read.forwardLineSet[1], matchedLen, read.lineLens[1] - matchedLen);
-		forward.newLine();
-		forward.write(read.forwardLineSet[2], 0, read.lineLens[2]);
-		forward.newLine();
-		forward.write(read.forwardLineSet[3], matchedLen, read.lineLens[3] - matchedLen);
-		forward.newLine();
+	public void write(Read read, int matchedLen) throws IOException {
+		byte[] buf = read.buf;
+		forward.writeLine(buf, read.lineStarts[0], read.lineLens[0]);
+		forward.writeLine(buf, read.lineStarts[1] + matchedLen, read.lineLens[1] - matchedLen);
+		forward.writeLine(buf, read.lineStarts[2], read.lineLens[2]);
+		forward.writeLine(buf, read.lineStarts[3] + matchedLen, read.lineLens[3] - matchedLen);
 		
-		reverse.write(read.reverseLineSet[0], 0, read.lineLens[4]);
-		reverse.newLine();
-		reverse.write(read.reverseLineSet[1], 0, read.lineLens[5]);
-		reverse.newLine();
-		reverse.write(read.reverseLineSet[2], 0, read.lineLens[6]);
-		reverse.newLine();
-		reverse.write(read.reverseLineSet[3], 0, read.lineLens[7]);
-		reverse.newLine();
-		nWritten.incrementAndGet();
+		// the reverse read is written unchanged
+		reverse.writeRecord(read, 4);
+		nWritten++;
 	}
 
 	public int getNumWritten() {
-		return nWritten.get();
+		return nWritten;
 	}
 }
@@ -0,0 +1,23 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// A sample's files being opened (writing out what was buffered while they were closed) or closed (waiting for
+// the last of their gzip blocks to be compressed)
+@Name("gbsTools.OutputFile")
+@Label("Output File")
+@Category({"gbsTools", "Output"})
+@Description("A sample's output files being opened or closed")
+class OutputFileEvent extends jdk.jfr.Event {
+	@Label("Sample")
+	String sample;
+	
+	@Label("Action")
+	String action;
+	
+	@Label("Buffered")
+	@DataAmount
+	long buffered;
+}
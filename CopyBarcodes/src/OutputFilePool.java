@@ -0,0 +1,36 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+// Keeps at most maxOpen samples' files open, closing the least recently written ones to make room. Samples
+// that don't fit buffer their reads in memory until there's enough of them to be worth reopening their files.
+// Not thread safe - like the OutputFiles themselves, each pool belongs to a single persist thread
+public class OutputFilePool {
+	
+	private final int maxOpen;
+	// in access order, so the least recently written file comes first
+	private final LinkedHashMap<OutputFile, Boolean> openFiles = new LinkedHashMap<>(16, 0.75f, true);
+	
+	public OutputFilePool(int maxOpen) {
+		this.maxOpen = maxOpen;
+	}
+	
+	public void write(OutputFile file, Read read, int matchedLen) throws IOException {
+		if (file.isOpen()) {
+			openFiles.get(file); // marks it as the most recently used
+		} else if (openFiles.size() < maxOpen || file.getNumPending() >= OutputFile.MAX_PENDING) {
+			open(file);
+		}
+		file.write(read, matchedLen);
+	}
+	
+	private void open(OutputFile file) throws IOException {
+		if (openFiles.size() >= maxOpen) {
+			Iterator<OutputFile> leastRecentlyUsed = openFiles.keySet().iterator();
+			leastRecentlyUsed.next().closeFiles();
+			leastRecentlyUsed.remove();
+		}
+		file.open();
+		openFiles.put(file, Boolean.TRUE);
+	}
+}
@@ -0,0 +1,72 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class OutputFilePoolTest {
+	
+	@Test
+	public void testEvictedSamplesAreAppendedTo() throws Exception {
+		int nSamples = 5;
+		int nReads = 20_000; // enough to reopen samples a few times
+		OutputFile[] files = new OutputFile[nSamples];
+		for (int i = 0; i < nSamples; i++) {
+			files[i] = new OutputFile("poolTest", "s" + i, false, false);
+		}
+		OutputFilePool pool = new OutputFilePool(2);
+		for (int i = 0; i < nReads; i++) {
+			Read read = Read.of("@" + i, "AAAAC" + i, "+", "FFFFF" + i, "@" + i, "GG" + i, "+", "FF" + i);
+			pool.write(files[i % nSamples], read, 4);
+			
+			int nOpen = 0;
+			for (OutputFile file : files) {
+				nOpen += file.isOpen() ? 1 : 0;
+			}
+			assert nOpen <= 2;
+		}
+		for (OutputFile file : files) {
+			file.close();
+		}
+		
+		for (int sample = 0; sample < nSamples; sample++) {
+			assert files[sample].getNumWritten() == nReads / nSamples;
+			checkFile("poolTest_s" + sample + ".R1.fq.gz", sample, nSamples, nReads, "C", "F");
+			checkFile("poolTest_s" + sample + ".R2.fq.gz", sample, nSamples, nReads, "GG", "FF");
+		}
+	}
+	
+	@Test
+	public void testUnwrittenSamplesGetEmptyFiles() throws Exception {
+		new File("poolTest_empty.R1.fq.gz").delete();
+		OutputFile file = new OutputFile("poolTest", "empty", false, false);
+		file.close();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new GZIPInputStream(new FileInputStream("poolTest_empty.R1.fq.gz"))))) {
+			String line = reader.readLine();
+			assert line == null;
+		}
+	}
+	
+	// every read written to the sample should be there, in order
+	private void checkFile(String name, int sample, int nSamples, int nReads, String sequencePrefix, 
+			String qualityPrefix) throws Exception {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new GZIPInputStream(new FileInputStream(name))))) {
+			for (int i = sample; i < nReads; i += nSamples) {
+				String header = reader.readLine();
+				String sequence = reader.readLine();
+				String separator = reader.readLine();
+				String quality = reader.readLine();
+				assert header.equals("@" + i);
+				assert sequence.equals(sequencePrefix + i);
+				assert separator.equals("+");
+				assert quality.equals(qualityPrefix + i);
+			}
+			String line = reader.readLine();
+			assert line == null;
+		}
+	}
+}
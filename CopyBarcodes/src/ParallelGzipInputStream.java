@@ -0,0 +1,257 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+// Decompresses BGZF-style gzip files (every member records its own compressed size in a "BC" extra subfield,
+// as written by bgzip or ParallelGzipOutputStream) by splitting them into members up front and inflating the
+// members on the GzipWorkerPool. Blocks are handed back in file order.
+// Plain gzip can't be split without inflating it, so it goes through a sequential GZIPInputStream instead;
+// use open(...) to pick the right one for a file.
+public class ParallelGzipInputStream extends InputStream {
+
+	static final int BUFFER_SIZE = 1 << 16;
+	private static final int HEADER_LEN = 12; // fixed part of the header, up to and including XLEN
+	private static final int TRAILER_LEN = 8; // CRC32 + ISIZE
+	private static final int FEXTRA = 4;
+	private static final int MAX_BLOCKS_IN_FLIGHT = 4 * GzipWorkerPool.size();
+	private static final byte[] EMPTY = new byte[0];
+
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+	private static final ThreadLocal<CRC32> checksums = ThreadLocal.withInitial(CRC32::new);
+
+	private final InputStream in;
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+	private byte[] block = EMPTY;
+	private int pos = 0;
+	private boolean inputDone = false;
+
+	// a member without a block size showed up partway through (e.g. files that were cat'ed together);
+	// once the blocks before it are used up, the rest of the input is read sequentially
+	private byte[] fallbackHeader = null;
+	private InputStream fallback = null;
+
+	public static InputStream open(String file) throws IOException {
+		return open(new FileInputStream(file));
+	}
+
+	public static InputStream open(InputStream compressed) throws IOException {
+		BufferedInputStream in = new BufferedInputStream(compressed, BUFFER_SIZE);
+		if (isBlockGzip(in)) {
+			return new ParallelGzipInputStream(in);
+		}
+		return new GZIPInputStream(in, BUFFER_SIZE);
+	}
+
+	private ParallelGzipInputStream(InputStream in) {
+		this.in = in;
+	}
+
+	private static boolean isBlockGzip(BufferedInputStream in) throws IOException {
+		in.mark(BUFFER_SIZE);
+		try {
+			byte[] header = new byte[HEADER_LEN];
+			if (readFully(in, header, 0, HEADER_LEN) < HEADER_LEN || !hasExtraField(header)) {
+				return false;
+			}
+			byte[] extra = new byte[readShort(header, 10)];
+			return readFully(in, extra, 0, extra.length) == extra.length && findBlockSize(extra) > 0;
+		} finally {
+			in.reset();
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (fallback == null && nextBlock()) {
+			return block[pos++] & 0xff;
+		}
+		return fallback == null ? -1 : fallback.read();
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (fallback == null && nextBlock()) {
+			int n = Math.min(len, block.length - pos);
+			System.arraycopy(block, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+		return fallback == null ? -1 : fallback.read(b, off, len);
+	}
+
+	@Override
+	public int available() throws IOException {
+		if (fallback == null && nextBlock()) {
+			return block.length - pos;
+		}
+		return fallback == null ? 0 : fallback.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		pending.forEach(future -> future.cancel(true));
+		pending.clear();
+		if (fallback != null) {
+			fallback.close();
+		} else {
+			in.close();
+		}
+	}
+
+	// returns true if there's unread data in block, false at the end of the blocks
+	private boolean nextBlock() throws IOException {
+		while (pos == block.length) {
+			queueMembers();
+			Future<byte[]> next = pending.poll();
+			if (next == null) {
+				if (fallbackHeader != null) {
+					fallback = new GZIPInputStream(new SequenceInputStream(
+							new ByteArrayInputStream(fallbackHeader), in), BUFFER_SIZE);
+					fallbackHeader = null;
+				}
+				return false;
+			}
+			try {
+				block = next.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for a gzip block", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+			pos = 0;
+		}
+		return true;
+	}
+
+	// reading the compressed bytes is cheap compared to inflating them, so this stays on the caller's thread
+	private void queueMembers() throws IOException {
+		while (!inputDone && pending.size() < MAX_BLOCKS_IN_FLIGHT) {
+			byte[] header = new byte[HEADER_LEN];
+			int n = readFully(in, header, 0, HEADER_LEN);
+			if (n == 0) {
+				inputDone = true;
+			} else if (n < HEADER_LEN) {
+				throw new EOFException("Truncated gzip header");
+			} else if (!hasExtraField(header)) {
+				fallbackHeader = header;
+				inputDone = true;
+			} else {
+				int xlen = readShort(header, 10);
+				byte[] member = new byte[HEADER_LEN + xlen];
+				System.arraycopy(header, 0, member, 0, HEADER_LEN);
+				if (readFully(in, member, HEADER_LEN, xlen) < xlen) {
+					throw new EOFException("Truncated gzip header");
+				}
+				byte[] extra = new byte[xlen];
+				System.arraycopy(member, HEADER_LEN, extra, 0, xlen);
+				int blockSize = findBlockSize(extra);
+				if (blockSize <= 0) {
+					fallbackHeader = member;
+					inputDone = true;
+				} else {
+					queueMember(member.length, blockSize);
+				}
+			}
+		}
+	}
+
+	private void queueMember(int headerLen, int blockSize) throws IOException {
+		int dataLen = blockSize - headerLen;
+		if (dataLen < TRAILER_LEN) {
+			throw new ZipException("Invalid gzip block size");
+		}
+		byte[] data = new byte[dataLen];
+		if (readFully(in, data, 0, dataLen) < dataLen) {
+			throw new EOFException("Truncated gzip block");
+		}
+		pending.add(GzipWorkerPool.get().submit(() -> inflate(data, dataLen - TRAILER_LEN)));
+	}
+
+	private static byte[] inflate(byte[] data, int compressedLen) throws IOException {
+		int expectedCrc = readInt(data, compressedLen);
+		int size = readInt(data, compressedLen + 4);
+		byte[] result = size == 0 ? EMPTY : new byte[size];
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(data, 0, compressedLen);
+		try {
+			int n = 0;
+			while (n < size && !inflater.finished()) {
+				int inflated = inflater.inflate(result, n, size - n);
+				if (inflated == 0 && inflater.needsInput()) {
+					break;
+				}
+				n += inflated;
+			}
+			if (n != size) {
+				throw new ZipException("Corrupt gzip block: expected " + size + " bytes, got " + n);
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		}
+		CRC32 crc = checksums.get();
+		crc.reset();
+		crc.update(result, 0, size);
+		if ((int) crc.getValue() != expectedCrc) {
+			throw new ZipException("Corrupt gzip block: CRC mismatch");
+		}
+		return result;
+	}
+
+	private static boolean hasExtraField(byte[] header) {
+		return (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b && header[2] == 8
+				&& (header[3] & ~1) == FEXTRA; // FTEXT is harmless, any other flag moves the data
+	}
+
+	// total size of the member from the BC subfield, or -1 if it doesn't have one
+	private static int findBlockSize(byte[] extra) {
+		int pos = 0;
+		while (pos + 4 <= extra.length) {
+			int subfieldLen = readShort(extra, pos + 2);
+			if (extra[pos] == 'B' && extra[pos + 1] == 'C' && subfieldLen == 2 && pos + 6 <= extra.length) {
+				return readShort(extra, pos + 4) + 1;
+			}
+			pos += 4 + subfieldLen;
+		}
+		return -1;
+	}
+
+	private static int readShort(byte[] b, int pos) {
+		return (b[pos] & 0xff) | (b[pos + 1] & 0xff) << 8;
+	}
+
+	private static int readInt(byte[] b, int pos) {
+		return readShort(b, pos) | readShort(b, pos + 2) << 16;
+	}
+
+	private static int readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+		int total = 0;
+		while (total < len) {
+			int n = in.read(b, off + total, len - total);
+			if (n < 0) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,100 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+public class ParallelGzipInputStreamTest {
+
+	@Test
+	public void testBlockGzip() throws Exception {
+		byte[] expected = randomFastq(500_000);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		for (int pos = 0; pos < expected.length; pos += 60_000) {
+			writeBlock(compressed, expected, pos, Math.min(60_000, expected.length - pos));
+		}
+		writeBlock(compressed, expected, 0, 0); // BGZF end-of-file marker
+
+		InputStream in = ParallelGzipInputStream.open(new ByteArrayInputStream(compressed.toByteArray()));
+		assert in instanceof ParallelGzipInputStream;
+		assert Arrays.equals(expected, readAll(in));
+	}
+
+	@Test
+	public void testPlainGzipFallback() throws Exception {
+		byte[] expected = randomFastq(100_000);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+			out.write(expected);
+		}
+		InputStream in = ParallelGzipInputStream.open(new ByteArrayInputStream(compressed.toByteArray()));
+		assert in instanceof GZIPInputStream;
+		assert Arrays.equals(expected, readAll(in));
+	}
+
+	@Test
+	public void testBlocksFollowedByPlainMember() throws Exception {
+		byte[] expected = randomFastq(200_000);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		writeBlock(compressed, expected, 0, 50_000);
+		writeBlock(compressed, expected, 50_000, 50_000);
+		try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+			out.write(expected, 100_000, 100_000);
+		}
+		InputStream in = ParallelGzipInputStream.open(new ByteArrayInputStream(compressed.toByteArray()));
+		assert Arrays.equals(expected, readAll(in));
+	}
+
+	private static byte[] readAll(InputStream in) throws Exception {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buf = new byte[7919]; // deliberately not aligned with the block size
+		int n;
+		while ((n = in.read(buf)) >= 0) {
+			result.write(buf, 0, n);
+		}
+		in.close();
+		return result.toByteArray();
+	}
+
+	static byte[] randomFastq(int len) {
+		Random rand = new Random(42);
+		byte[] data = new byte[len];
+		String bases = "ACGT";
+		for (int i = 0; i < len; i++) {
+			data[i] = i % 80 == 79 ? (byte) '\n' : (byte) bases.charAt(rand.nextInt(4));
+		}
+		return data;
+	}
+
+	// writes a single BGZF member, the same layout bgzip uses
+	private static void writeBlock(ByteArrayOutputStream out, byte[] data, int off, int len) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(data, off, len);
+		deflater.finish();
+		byte[] compressed = new byte[len + 1024];
+		int compressedLen = deflater.deflate(compressed);
+		deflater.end();
+		CRC32 crc = new CRC32();
+		crc.update(data, off, len);
+
+		int blockSize = 18 + compressedLen + 8;
+		out.write(new byte[] {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+				(byte) (blockSize - 1), (byte) ((blockSize - 1) >> 8)}, 0, 18);
+		out.write(compressed, 0, compressedLen);
+		writeInt(out, (int) crc.getValue());
+		writeInt(out, len);
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value) {
+		out.write(value);
+		out.write(value >> 8);
+		out.write(value >> 16);
+		out.write(value >> 24);
+	}
+}
@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// pigz-style gzip compression: the data is cut into independent blocks, which are deflated on the
+// GzipWorkerPool and written out in order, so a single busy stream can keep every core compressing.
+// Each block is a complete gzip member carrying a BGZF "BC" extra subfield with its size, so the output
+// is ordinary multi-member gzip to any reader, and ParallelGzipInputStream can inflate it in parallel too.
+// Not thread safe - like any other stream, a single thread should write to it at a time.
+// Given a PipelineMetrics, deflating the blocks and writing them out are measured as its compress and
+// disk write stages, and the writer waiting on a block that isn't compressed yet as the disk write's waiting.
+public class ParallelGzipOutputStream extends OutputStream {
+
+	// the largest block BGZF allows is 64KB compressed, this leaves enough headroom for incompressible data
+	static final int BLOCK_SIZE = 0xff00;
+	private static final int HEADER_LEN = 18;
+	private static final int TRAILER_LEN = 8;
+	private static final int MAX_COMPRESSED_SIZE = 1 << 16;
+	private static final int MAX_BLOCKS_IN_FLIGHT = 2 * GzipWorkerPool.size();
+	// demultiplexing keeps hundreds of these streams open, so idle ones shouldn't hang on to much memory
+	private static final int MAX_FREE_BLOCKS = 2;
+	// an empty block, which BGZF readers expect to find at the end of the file
+	private static final byte[] EOF_BLOCK = {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+			0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(
+			() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+	private static final ThreadLocal<CRC32> checksums = ThreadLocal.withInitial(CRC32::new);
+
+	// both buffers are recycled once the compressed data has been written out
+	private static class Block {
+		final byte[] input = new byte[BLOCK_SIZE];
+		final byte[] compressed = new byte[MAX_COMPRESSED_SIZE];
+		int compressedLen;
+	}
+
+	private final OutputStream out;
+	// only used to tell the streams apart in GzipStallEvents
+	private final String name;
+	// null if nobody's measuring
+	private final StageMetrics compressMetrics;
+	private final StageMetrics writeMetrics;
+	private final ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+	private final ArrayDeque<Block> freeBlocks = new ArrayDeque<>();
+	private Block block = null;
+	private int pos = 0;
+	private boolean finished = false;
+
+	public ParallelGzipOutputStream(OutputStream out) {
+		this(out, null);
+	}
+	
+	public ParallelGzipOutputStream(OutputStream out, String name) {
+		this(out, name, null);
+	}
+	
+	public ParallelGzipOutputStream(OutputStream out, String name, PipelineMetrics metrics) {
+		this.out = out;
+		this.name = name;
+		compressMetrics = metrics == null ? null : metrics.getCompress();
+		writeMetrics = metrics == null ? null : metrics.getDiskWrite();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (block == null || pos == BLOCK_SIZE) {
+			nextBlock();
+		}
+		block.input[pos++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (block == null || pos == BLOCK_SIZE) {
+				nextBlock();
+			}
+			int n = Math.min(len, BLOCK_SIZE - pos);
+			System.arraycopy(b, off, block.input, pos, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	// hands off the current block (if there is one) and starts a new one
+	private void nextBlock() throws IOException {
+		if (finished) {
+			throw new IOException("Stream already finished");
+		}
+		submitBlock();
+		block = freeBlocks.isEmpty() ? new Block() : freeBlocks.poll();
+		pos = 0;
+	}
+
+	private void submitBlock() throws IOException {
+		if (block != null && pos > 0) {
+			Block toCompress = block;
+			int len = pos;
+			StageMetrics metrics = compressMetrics;
+			pending.add(GzipWorkerPool.get().submit(() -> {
+				if (metrics == null) {
+					return compress(toCompress, len);
+				}
+				long start = System.nanoTime();
+				Block compressed = compress(toCompress, len);
+				metrics.recordEntry(System.nanoTime() - start, 0, len);
+				return compressed;
+			}));
+			block = null;
+			pos = 0;
+		}
+		// write out whatever is already done, and block if we've gotten too far ahead of the compressors
+		while (!pending.isEmpty() && (pending.peek().isDone() || pending.size() > MAX_BLOCKS_IN_FLIGHT)) {
+			writeBlock(pending.poll());
+		}
+	}
+
+	private void writeBlock(Future<Block> future) throws IOException {
+		// like a file write, waiting on the compressor isn't interruptible - the writing threads get interrupted
+		// to tell them the input is done, and they still need to write out everything that's queued up
+		Block compressed = null;
+		boolean interrupted = false;
+		long waitStart = writeMetrics == null ? 0 : System.nanoTime();
+		GzipStallEvent event = new GzipStallEvent();
+		event.begin();
+		try {
+			while (compressed == null) {
+				try {
+					compressed = future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to compress a gzip block", e.getCause());
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (writeMetrics != null) {
+			writeMetrics.recordWaiting(System.nanoTime() - waitStart);
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.file = name;
+			event.blocksInFlight = pending.size() + 1;
+			event.commit();
+		}
+		if (writeMetrics == null) {
+			out.write(compressed.compressed, 0, compressed.compressedLen);
+		} else {
+			long start = System.nanoTime();
+			out.write(compressed.compressed, 0, compressed.compressedLen);
+			writeMetrics.recordEntry(System.nanoTime() - start, 0, compressed.compressedLen);
+		}
+		if (freeBlocks.size() < MAX_FREE_BLOCKS) {
+			freeBlocks.add(compressed);
+		}
+	}
+
+	private static Block compress(Block block, int len) throws IOException {
+		byte[] data = block.compressed;
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(block.input, 0, len);
+		deflater.finish();
+		int compressedLen = 0;
+		while (!deflater.finished()) {
+			int room = data.length - HEADER_LEN - TRAILER_LEN - compressedLen;
+			if (room == 0) {
+				throw new IOException("Compressed block does not fit in a gzip block");
+			}
+			compressedLen += deflater.deflate(data, HEADER_LEN + compressedLen, room);
+		}
+		CRC32 crc = checksums.get();
+		crc.reset();
+		crc.update(block.input, 0, len);
+
+		int blockSize = HEADER_LEN + compressedLen + TRAILER_LEN;
+		System.arraycopy(EOF_BLOCK, 0, data, 0, HEADER_LEN);
+		data[16] = (byte) (blockSize - 1);
+		data[17] = (byte) ((blockSize - 1) >> 8);
+		writeInt(data, HEADER_LEN + compressedLen, (int) crc.getValue());
+		writeInt(data, HEADER_LEN + compressedLen + 4, len);
+		block.compressedLen = blockSize;
+		return block;
+	}
+
+	private static void writeInt(byte[] b, int pos, int value) {
+		b[pos] = (byte) value;
+		b[pos + 1] = (byte) (value >> 8);
+		b[pos + 2] = (byte) (value >> 16);
+		b[pos + 3] = (byte) (value >> 24);
+	}
+
+	// cuts the current block short and waits for everything written so far to be compressed
+	@Override
+	public void flush() throws IOException {
+		submitBlock();
+		while (!pending.isEmpty()) {
+			writeBlock(pending.poll());
+		}
+		out.flush();
+	}
+
+	// writes out everything, plus the end of file marker, without closing the underlying stream
+	public void finish() throws IOException {
+		if (!finished) {
+			flush();
+			out.write(EOF_BLOCK);
+			finished = true;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			pending.forEach(future -> future.cancel(true));
+			out.close();
+		}
+	}
+}
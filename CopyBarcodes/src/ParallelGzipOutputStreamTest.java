@@ -0,0 +1,48 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class ParallelGzipOutputStreamTest {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		byte[] expected = ParallelGzipInputStreamTest.randomFastq(1_000_000);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed)) {
+			out.write(expected, 0, 10);
+			out.write(expected[10]);
+			out.write(expected, 11, expected.length - 11);
+		}
+
+		// readable as plain gzip
+		assert Arrays.equals(expected, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))));
+
+		// and splittable into blocks
+		InputStream in = ParallelGzipInputStream.open(new ByteArrayInputStream(compressed.toByteArray()));
+		assert in instanceof ParallelGzipInputStream;
+		assert Arrays.equals(expected, readAll(in));
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		new ParallelGzipOutputStream(compressed).close();
+		assert readAll(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))).length == 0;
+		assert readAll(ParallelGzipInputStream.open(new ByteArrayInputStream(compressed.toByteArray()))).length == 0;
+	}
+
+	private static byte[] readAll(InputStream in) throws Exception {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) >= 0) {
+			result.write(buf, 0, n);
+		}
+		in.close();
+		return result.toByteArray();
+	}
+}
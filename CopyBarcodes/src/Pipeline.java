@@ -0,0 +1,246 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Runs a chain of stages over a RingBuffer: one or more sources filling entries, followed by any number of stages that
+ * either share the work of processing every entry between several threads (parallel), or each see every entry
+ * in order on their own thread (broadcast - typically writers, each handling their own output).
+ * 
+ * The end of the input travels down the ring behind the last entry, so run() returns as soon as the last stage
+ * is done, without any polling or timeouts. If any stage throws, every other stage stops, and run() rethrows
+ * the first failure.
+ * 
+ * Given a PipelineMetrics, every stage keeps track of how long it spends on each entry, and how long it spends
+ * waiting for the next one (or for sources, for room in the ring). Every entry going through
+ * a stage is also a PipelineEntryEvent, and every wait for a free entry a PipelineBlockedEvent (naming the
+ * thread it waited on), for Flight Recorder - when it isn't recording, the events are compiled away.
+ */
+public class Pipeline<E> {
+	
+	public interface Source<E> {
+		/**
+		 * Fills the next entry. The entry gets passed on either way, so it can be partially filled (or empty)
+		 * at the end of the input.
+		 * 
+		 * @return false once the input has run out
+		 */
+		boolean fill(E entry) throws Exception;
+	}
+	
+	private static class Stage<E> {
+		final String name;
+		final boolean shared;
+		final List<RingBuffer.EntryHandler<E>> handlers;
+		
+		Stage(String name, boolean shared, List<RingBuffer.EntryHandler<E>> handlers) {
+			this.name = name;
+			this.shared = shared;
+			this.handlers = handlers;
+		}
+	}
+	
+	private final Supplier<E> factory;
+	private final WaitStrategy waitStrategy;
+	private String sourceName;
+	private List<Source<E>> sources;
+	private final List<Stage<E>> stages = new ArrayList<>();
+	private PipelineMetrics metrics = null;
+	private ToIntFunction<E> recordsPerEntry = null;
+	private ToIntFunction<E> bytesPerEntry = null;
+	
+	public Pipeline(Supplier<E> factory, WaitStrategy waitStrategy) {
+		this.factory = factory;
+		this.waitStrategy = waitStrategy;
+	}
+	
+	public Pipeline<E> source(String name, Source<E> source) {
+		return sources(name, Collections.singletonList(source));
+	}
+	
+	// each source fills entries on its own thread, so entries from different sources end up interleaved
+	public Pipeline<E> sources(String name, List<Source<E>> sources) {
+		this.sourceName = name;
+		this.sources = sources;
+		return this;
+	}
+	
+	// every entry goes to exactly one of nThreads handlers, so each thread gets its own handler (and scratch state)
+	public Pipeline<E> parallel(String name, int nThreads, Supplier<RingBuffer.EntryHandler<E>> handlers) {
+		List<RingBuffer.EntryHandler<E>> perThread = new ArrayList<>();
+		for (int i = 0; i < nThreads; i++) {
+			perThread.add(handlers.get());
+		}
+		stages.add(new Stage<>(name, true, perThread));
+		return this;
+	}
+	
+	// every entry goes to every one of the handlers, in order, each on its own thread
+	public Pipeline<E> broadcast(String name, List<RingBuffer.EntryHandler<E>> handlers) {
+		stages.add(new Stage<>(name, false, handlers));
+		return this;
+	}
+	
+	public Pipeline<E> sink(String name, RingBuffer.EntryHandler<E> handler) {
+		return broadcast(name, Collections.singletonList(handler));
+	}
+	
+	// records every stage's timings in metrics; recordsPerEntry counts the records in an entry (i.e. a batch's size)
+	public Pipeline<E> metrics(PipelineMetrics metrics, ToIntFunction<E> recordsPerEntry) {
+		return metrics(metrics, recordsPerEntry, entry -> 0);
+	}
+	
+	// the same, with bytesPerEntry counting the bytes in an entry, for every stage's throughput
+	public Pipeline<E> metrics(PipelineMetrics metrics, ToIntFunction<E> recordsPerEntry, 
+			ToIntFunction<E> bytesPerEntry) {
+		this.metrics = metrics;
+		this.recordsPerEntry = recordsPerEntry;
+		this.bytesPerEntry = bytesPerEntry;
+		return this;
+	}
+	
+	public void run() throws Exception {
+		// enough entries for every thread to have one to work on, and another one waiting
+		int nThreads = sources.size();
+		for (Stage<E> stage : stages) {
+			nThreads += stage.handlers.size();
+		}
+		RingBuffer<E> ring = new RingBuffer<>(factory, Integer.highestOneBit(2 * nThreads - 1) << 1, sources.size(), 
+				waitStrategy);
+		
+		List<Thread> threads = new ArrayList<>();
+		RingBuffer<E>.Barrier barrier = ring.newBarrier();
+		Sequence[] previous = new Sequence[0];
+		// the names of the last stage's threads, which the sources wait on
+		String[] lastThreads = new String[0];
+		StageMetrics sourceMetrics = metrics == null ? null : metrics.addStage(sourceName, sources.size());
+		for (Stage<E> stage : stages) {
+			StageMetrics stageMetrics = metrics == null ? null : metrics.addStage(stage.name, stage.handlers.size());
+			RingBuffer<E>.Barrier stageBarrier = barrier;
+			Sequence workSequence = new Sequence();
+			Sequence[] sequences = new Sequence[stage.handlers.size()];
+			for (int i = 0; i < sequences.length; i++) {
+				Sequence sequence = new Sequence();
+				sequences[i] = sequence;
+				RingBuffer.EntryHandler<E> handler = timed(stage.name, stage.handlers.get(i), stageMetrics);
+				threads.add(new Thread(() -> {
+					try {
+						if (stage.shared) {
+							ring.consumeShared(stageBarrier, workSequence, sequence, handler);
+						} else {
+							ring.consume(stageBarrier, sequence, handler);
+						}
+					} catch (Exception e) {
+						// already passed on to the ring
+					}
+				}, stage.name + "-" + i));
+			}
+			barrier = ring.newBarrier(sequences);
+			previous = sequences;
+			lastThreads = new String[sequences.length];
+			for (int i = 0; i < sequences.length; i++) {
+				lastThreads[i] = stage.name + "-" + i;
+			}
+		}
+		ring.setGatingSequences(previous);
+		String[] gateNames = lastThreads;
+		for (int i = 0; i < sources.size(); i++) {
+			Source<E> source = sources.get(i);
+			threads.add(new Thread(() -> produce(ring, source, sourceName, sourceMetrics, gateNames), 
+					sources.size() == 1 ? sourceName : sourceName + "-" + i));
+		}
+		if (metrics != null) {
+			metrics.start(ring.size(), ring::getOccupancy);
+		}
+		
+		for (Thread thread : threads) {
+			thread.setDaemon(true);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (metrics != null) {
+			metrics.finish();
+		}
+		Throwable failure = ring.getFailure();
+		if (failure instanceof Exception) {
+			throw (Exception) failure;
+		} else if (failure != null) {
+			throw (Error) failure;
+		}
+	}
+	
+	private RingBuffer.EntryHandler<E> timed(String stageName, RingBuffer.EntryHandler<E> handler, 
+			StageMetrics stageMetrics) {
+		// every handler runs on a thread of its own, so this only tracks one thread's last entry
+		long[] lastEnd = {0};
+		return entry -> {
+			PipelineEntryEvent event = new PipelineEntryEvent();
+			event.begin();
+			if (stageMetrics == null) {
+				handler.onEntry(entry);
+			} else {
+				// the time since the last entry (or the start) went on waiting for this one
+				long start = System.nanoTime();
+				stageMetrics.recordWaiting(start - (lastEnd[0] == 0 ? metrics.getStartNanos() : lastEnd[0]));
+				handler.onEntry(entry);
+				lastEnd[0] = System.nanoTime();
+				stageMetrics.recordEntry(lastEnd[0] - start, recordsPerEntry.applyAsInt(entry), 
+						bytesPerEntry.applyAsInt(entry));
+			}
+			commit(event, stageName, entry);
+		};
+	}
+	
+	private void commit(PipelineEntryEvent event, String stageName, E entry) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.stage = stageName;
+			event.records = recordsPerEntry == null ? 0 : recordsPerEntry.applyAsInt(entry);
+			event.commit();
+		}
+	}
+	
+	private void produce(RingBuffer<E> ring, Source<E> source, String name, StageMetrics sourceMetrics, 
+			String[] gateNames) {
+		try {
+			boolean more = true;
+			while (more) {
+				// waiting for an entry means the stages after this one are behind
+				PipelineBlockedEvent blocked = new PipelineBlockedEvent();
+				// only worth looking up while recording, and it has to be before the wait, while it's still behind
+				int slowest = blocked.isEnabled() && gateNames.length > 0 ? ring.getSlowestGate() : -1;
+				blocked.begin();
+				long start = sourceMetrics == null ? 0 : System.nanoTime();
+				long sequence = ring.next();
+				blocked.end();
+				if (blocked.shouldCommit()) {
+					blocked.stage = name;
+					blocked.waitingOn = slowest < 0 ? null : gateNames[slowest];
+					blocked.commit();
+				}
+				
+				PipelineEntryEvent filled = new PipelineEntryEvent();
+				filled.begin();
+				E entry = ring.get(sequence);
+				if (sourceMetrics == null) {
+					more = source.fill(entry);
+				} else {
+					long claimed = System.nanoTime();
+					more = source.fill(entry);
+					sourceMetrics.recordBlocked(claimed - start);
+					sourceMetrics.recordEntry(System.nanoTime() - claimed, recordsPerEntry.applyAsInt(entry), 
+							bytesPerEntry.applyAsInt(entry));
+				}
+				commit(filled, name, entry);
+				ring.publish(sequence);
+			}
+			ring.finish();
+		} catch (Exception | Error e) {
+			ring.fail(e);
+		}
+	}
+}
@@ -0,0 +1,22 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+// A source waiting for a free entry in the ring, because the stages after it are behind. waitingOn names the
+// thread of the last stage that was furthest behind when the wait started - for Demultiplexer, the writer shard
+// whose samples are slow to write; its GzipStall and OutputFile events name the samples
+@Name("gbsTools.PipelineBlocked")
+@Label("Pipeline Blocked")
+@Category({"gbsTools", "Pipeline"})
+// short waits are routine, and would drown out the ones that matter
+@Threshold("1 ms")
+@Description("A source waiting for the stages after it to free up an entry")
+class PipelineBlockedEvent extends jdk.jfr.Event {
+	@Label("Stage")
+	String stage;
+	
+	@Label("Waiting On")
+	String waitingOn;
+}
@@ -0,0 +1,18 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// One entry (i.e. a batch of reads) going through one stage of a Pipeline: decoding a batch in the parser,
+// matching it in a matcher, writing it out in a writer
+@Name("gbsTools.PipelineEntry")
+@Label("Pipeline Entry")
+@Category({"gbsTools", "Pipeline"})
+@Description("A stage of a pipeline processing one entry")
+class PipelineEntryEvent extends jdk.jfr.Event {
+	@Label("Stage")
+	String stage;
+	
+	@Label("Records")
+	int records;
+}
@@ -0,0 +1,238 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Where the time goes in a Pipeline: a StageMetrics for every stage (see Pipeline.metrics), how full the ring is,
+ * and how fast the compressed input is being read. They're published as MXBeans (gbsTools:type=Pipeline and 
+ * gbsTools:type=Stage, for jconsole and the like) once the pipeline starts, and can be written out as JSON
+ * every few seconds.
+ * 
+ * The parser and writers hand their I/O off to other threads, so their own stages can't say whether it's
+ * decompression, compression or the disk holding them up. When it's given the number of input streams and
+ * writer threads, it also measures those as stages of their own: inflate (the MultiFileInputStream read-ahead
+ * threads), compress (ParallelGzipOutputStream's blocks on the GzipWorkerPool) and disk write (the writers
+ * writing out the compressed blocks).
+ */
+public class PipelineMetrics implements PipelineMetricsMXBean {
+	
+	private final String name;
+	private final List<StageMetrics> stages = new CopyOnWriteArrayList<>();
+	private final List<StageMetrics> ioStages = new ArrayList<>();
+	// null if the I/O isn't measured
+	private final StageMetrics inflate;
+	private final StageMetrics compress;
+	private final StageMetrics diskWrite;
+	private volatile long startTime = 0;
+	private volatile long endTime = 0;
+	private volatile int ringSize = 0;
+	private volatile LongSupplier ringOccupancy = () -> 0;
+	private volatile LongSupplier inputBytes = () -> 0;
+	
+	public PipelineMetrics(String name) {
+		this.name = name;
+		inflate = null;
+		compress = null;
+		diskWrite = null;
+	}
+	
+	// also measures the I/O, see above
+	public PipelineMetrics(String name, int nInputStreams, int nWriterThreads) {
+		this.name = name;
+		inflate = addIoStage("inflate", nInputStreams);
+		compress = addIoStage("compress", GzipWorkerPool.size());
+		diskWrite = addIoStage("disk write", nWriterThreads);
+	}
+	
+	private StageMetrics addIoStage(String stageName, int nThreads) {
+		StageMetrics stage = new StageMetrics(this, stageName, nThreads);
+		ioStages.add(stage);
+		return stage;
+	}
+	
+	// i.e. the compressed bytes read so far (see CountingInputStream)
+	public void setInputBytes(LongSupplier inputBytes) {
+		this.inputBytes = inputBytes;
+	}
+	
+	StageMetrics addStage(String stageName, int nThreads) {
+		StageMetrics stage = new StageMetrics(this, stageName, nThreads);
+		stages.add(stage);
+		return stage;
+	}
+	
+	public List<StageMetrics> getStages() {
+		return stages;
+	}
+	
+	public List<StageMetrics> getIoStages() {
+		return ioStages;
+	}
+	
+	// the read-ahead threads decompressing the input, or null if the I/O isn't measured
+	public StageMetrics getInflate() {
+		return inflate;
+	}
+	
+	// deflating the output's blocks, or null if the I/O isn't measured
+	public StageMetrics getCompress() {
+		return compress;
+	}
+	
+	// writing the compressed blocks out, or null if the I/O isn't measured
+	public StageMetrics getDiskWrite() {
+		return diskWrite;
+	}
+	
+	void start(int ringSize, LongSupplier ringOccupancy) {
+		this.ringSize = ringSize;
+		this.ringOccupancy = ringOccupancy;
+		startTime = System.nanoTime();
+		register();
+	}
+	
+	// when the pipeline started, as System.nanoTime()
+	long getStartNanos() {
+		return startTime;
+	}
+	
+	void finish() {
+		endTime = System.nanoTime();
+	}
+	
+	private void register() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			register(server, new ObjectName("gbsTools:type=Pipeline,name=" + ObjectName.quote(name)), this);
+			List<StageMetrics> allStages = new ArrayList<>(stages);
+			allStages.addAll(ioStages);
+			for (StageMetrics stage : allStages) {
+				register(server, new ObjectName("gbsTools:type=Stage,pipeline=" + ObjectName.quote(name) 
+						+ ",name=" + ObjectName.quote(stage.getName())), stage);
+			}
+		} catch (JMException e) {
+			// the metrics are still there for snapshots, they just can't be looked at remotely
+			e.printStackTrace();
+		}
+	}
+	
+	// the latest run of a pipeline replaces the one before
+	private static void register(MBeanServer server, ObjectName objectName, Object bean) throws JMException {
+		if (server.isRegistered(objectName)) {
+			server.unregisterMBean(objectName);
+		}
+		server.registerMBean(bean, objectName);
+	}
+	
+	@Override
+	public String getName() {
+		return name;
+	}
+	
+	@Override
+	public double getElapsedSeconds() {
+		long start = startTime;
+		if (start == 0) {
+			return 0;
+		}
+		long end = endTime;
+		return ((end == 0 ? System.nanoTime() : end) - start) / 1e9;
+	}
+	
+	@Override
+	public int getRingSize() {
+		return ringSize;
+	}
+	
+	@Override
+	public long getRingOccupancy() {
+		return ringOccupancy.getAsLong();
+	}
+	
+	@Override
+	public long getInputBytes() {
+		return inputBytes.getAsLong();
+	}
+	
+	@Override
+	public double getInputMBPerSecond() {
+		return getInputBytes() / (1024.0 * 1024) / Math.max(1e-3, getElapsedSeconds());
+	}
+	
+	@Override
+	public String getSnapshotJson() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"name\": \"").append(name).append('"')
+				.append(", \"elapsedSeconds\": ").append(Math.round(getElapsedSeconds() * 10) / 10.0)
+				.append(", \"ringSize\": ").append(ringSize)
+				.append(", \"ringOccupancy\": ").append(getRingOccupancy())
+				.append(", \"inputBytes\": ").append(getInputBytes())
+				.append(", \"inputMBPerSecond\": ").append(Math.round(getInputMBPerSecond() * 10) / 10.0)
+				.append(", \"stages\": [");
+		appendStages(json, stages);
+		json.append("], \"io\": [");
+		appendStages(json, ioStages);
+		return json.append("]}\n").toString();
+	}
+	
+	private static void appendStages(StringBuilder json, List<StageMetrics> stages) {
+		for (int i = 0; i < stages.size(); i++) {
+			json.append(i == 0 ? "\n  " : ",\n  ");
+			stages.get(i).appendJson(json);
+		}
+	}
+	
+	/**
+	 * Writes the snapshot to file every intervalSeconds (replacing it in one go, so it can be read at any time),
+	 * and once more on close. Does nothing if file is empty.
+	 */
+	public Closeable writeSnapshots(String file, int intervalSeconds) {
+		if (file == null || file.isEmpty()) {
+			return () -> {};
+		}
+		Path path = Paths.get(file);
+		ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "metrics-" + name);
+			thread.setDaemon(true);
+			return thread;
+		});
+		exec.scheduleAtFixedRate(() -> {
+			try {
+				writeSnapshot(path);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+		return () -> {
+			exec.shutdownNow();
+			try {
+				exec.awaitTermination(intervalSeconds, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			writeSnapshot(path);
+		};
+	}
+	
+	void writeSnapshot(Path path) throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.write(tmp, getSnapshotJson().getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
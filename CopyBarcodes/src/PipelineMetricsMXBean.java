@@ -0,0 +1,17 @@
+
+// what JMX shows for a pipeline as a whole (see PipelineMetrics)
+public interface PipelineMetricsMXBean {
+	String getName();
+	
+	double getElapsedSeconds();
+	
+	int getRingSize();
+	
+	long getRingOccupancy();
+	
+	long getInputBytes();
+	
+	double getInputMBPerSecond();
+	
+	String getSnapshotJson();
+}
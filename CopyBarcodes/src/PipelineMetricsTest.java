@@ -0,0 +1,102 @@
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Random;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class PipelineMetricsTest {
+	
+	private static class Entry {
+		int size;
+	}
+	
+	@Test
+	public void testStagesAreMeasured() throws Exception {
+		PipelineMetrics metrics = new PipelineMetrics("metricsTest");
+		int[] produced = new int[1];
+		new Pipeline<>(Entry::new, WaitStrategy.parking())
+				.source("source", entry -> {
+					entry.size = 10;
+					return ++produced[0] < 1000;
+				})
+				.parallel("work", 2, () -> entry -> Thread.yield())
+				.sink("sink", entry -> {})
+				.metrics(metrics, entry -> entry.size, entry -> 100)
+				.run();
+		
+		assert metrics.getStages().size() == 3;
+		for (StageMetrics stage : metrics.getStages()) {
+			assert stage.getEntries() == 1000;
+			assert stage.getRecords() == 10_000;
+			assert stage.getBytes() == 100_000;
+			assert stage.getRecordsPerSecond() > 0;
+			assert stage.getBusyPercent() + stage.getBlockedPercent() + stage.getWaitingPercent() <= 100.001;
+			assert stage.getP99EntryMicros() >= stage.getMedianEntryMicros();
+		}
+		assert metrics.getStages().get(1).getThreads() == 2;
+		// only the stages after the source wait on the one before
+		assert metrics.getStages().get(0).getWaitingPercent() == 0;
+		assert metrics.getStages().get(2).getWaitingPercent() > 0;
+		
+		// the numbers are published over JMX too
+		Object records = ManagementFactory.getPlatformMBeanServer().getAttribute(
+				new ObjectName("gbsTools:type=Stage,pipeline=\"metricsTest\",name=\"work\""), "Records");
+		assert records.equals(10_000L);
+		
+		metrics.writeSnapshot(Paths.get("metricsTest.json"));
+		String json = new String(Files.readAllBytes(Paths.get("metricsTest.json")), "UTF-8");
+		assert json.startsWith("{\"name\": \"metricsTest\"");
+		assert json.contains("{\"name\": \"work\", \"threads\": 2, \"entries\": 1000, \"records\": 10000");
+	}
+	
+	@Test
+	public void testIoIsMeasured() throws Exception {
+		PipelineMetrics metrics = new PipelineMetrics("ioTest", 1, 1);
+		metrics.start(1, () -> 0);
+		byte[] data = new byte[1 << 20];
+		new Random(1).nextBytes(data);
+		try (OutputStream out = new ParallelGzipOutputStream(new FileOutputStream("ioTest.gz"), "ioTest", metrics)) {
+			out.write(data);
+		}
+		byte[] read = new byte[data.length];
+		try (InputStream in = MultiFileInputStream.getStream(Collections.singletonList("ioTest.gz"), null, 
+				metrics.getInflate())) {
+			int len = 0;
+			for (int n = 0; n >= 0 && len < read.length; len += n) {
+				n = in.read(read, len, read.length - len);
+			}
+		}
+		metrics.finish();
+		
+		assert metrics.getCompress().getBytes() == data.length;
+		assert metrics.getCompress().getEntries() == (data.length + ParallelGzipOutputStream.BLOCK_SIZE - 1) 
+				/ ParallelGzipOutputStream.BLOCK_SIZE;
+		// random bytes don't compress
+		assert metrics.getDiskWrite().getBytes() > data.length;
+		assert metrics.getInflate().getBytes() == data.length;
+		assert metrics.getInflate().getBusyPercent() > 0;
+		String json = metrics.getSnapshotJson();
+		assert json.contains("\"io\": [\n  {\"name\": \"inflate\"");
+		assert json.contains("{\"name\": \"disk write\", \"threads\": 1");
+	}
+	
+	@Test
+	public void testPercentiles() {
+		StageMetrics stage = new PipelineMetrics("percentiles").addStage("stage", 1);
+		for (int i = 0; i < 99; i++) {
+			stage.recordEntry(1000, 1);
+		}
+		stage.recordEntry(1_000_000, 1);
+		// the upper bounds of the power of 2 buckets
+		assert stage.entryPercentile(0.5) == 1023;
+		assert stage.entryPercentile(0.99) == 1023;
+		assert stage.entryPercentile(1) == (1 << 20) - 1;
+	}
+}
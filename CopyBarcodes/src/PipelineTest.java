@@ -0,0 +1,178 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+
+public class PipelineTest {
+	
+	private static class Entry {
+		int value;
+		int doubled;
+	}
+	
+	@Test
+	public void testEveryEntryReachesEverySink() throws Exception {
+		int nEntries = 10_000;
+		int[] produced = new int[1];
+		AtomicLong nProcessed = new AtomicLong();
+		List<Integer> seen1 = new ArrayList<>();
+		List<Integer> seen2 = new ArrayList<>();
+		new Pipeline<>(Entry::new, WaitStrategy.parking())
+				.source("source", entry -> {
+					entry.value = ++produced[0];
+					return produced[0] < nEntries;
+				})
+				.parallel("double", 3, () -> entry -> {
+					entry.doubled = entry.value * 2;
+					nProcessed.incrementAndGet();
+				})
+				.broadcast("sink", Arrays.asList(entry -> seen1.add(entry.doubled), entry -> seen2.add(entry.doubled)))
+				.run();
+		
+		// the last entry is passed on too, and run() doesn't return before the sinks are done with it
+		assert nProcessed.get() == nEntries;
+		assert seen1.size() == nEntries;
+		assert seen1.equals(seen2);
+		for (int i = 0; i < nEntries; i++) {
+			assert seen1.get(i) == (i + 1) * 2;
+		}
+	}
+	
+	@Test
+	public void testSeveralSources() throws Exception {
+		int nSources = 3;
+		int nEntries = 10_000; // per source
+		List<Pipeline.Source<Entry>> sources = new ArrayList<>();
+		for (int i = 0; i < nSources; i++) {
+			int source = i;
+			int[] produced = new int[1];
+			sources.add(entry -> {
+				// the last entry is published even though it's empty
+				entry.doubled = source;
+				entry.value = produced[0] < nEntries ? ++produced[0] : 0;
+				return produced[0] < nEntries;
+			});
+		}
+		int[] lastSeen = new int[nSources];
+		int[] nSeen = new int[1];
+		new Pipeline<>(Entry::new, WaitStrategy.parking())
+				.sources("source", sources)
+				.sink("sink", entry -> {
+					if (entry.value > 0) {
+						// every source's entries come through in the order it produced them
+						assert entry.value == lastSeen[entry.doubled] + 1;
+						lastSeen[entry.doubled] = entry.value;
+						nSeen[0]++;
+					}
+				})
+				.run();
+		assert nSeen[0] == nSources * nEntries;
+	}
+	
+	@Test
+	public void testFailuresAreRethrown() throws Exception {
+		try {
+			new Pipeline<>(Entry::new, WaitStrategy.parking())
+					.source("source", entry -> true) // never ends on its own
+					.parallel("fail", 2, () -> entry -> {
+						throw new IllegalArgumentException("bad entry");
+					})
+					.sink("sink", entry -> {})
+					.run();
+			assert false;
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		
+		try {
+			new Pipeline<>(Entry::new, WaitStrategy.parking())
+					.source("source", entry -> {
+						throw new IllegalStateException("bad input");
+					})
+					.sink("sink", entry -> {})
+					.run();
+			assert false;
+		} catch (IllegalStateException e) {
+			assert e.getMessage().equals("bad input");
+		}
+	}
+	
+	@Test
+	public void testFlightRecorderEvents() throws Exception {
+		int nEntries = 100;
+		int[] produced = new int[1];
+		File recorded = File.createTempFile("pipeline", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable(PipelineEntryEvent.class);
+			recording.start();
+			new Pipeline<>(Entry::new, WaitStrategy.parking())
+					.source("source", entry -> {
+						entry.value = ++produced[0];
+						return produced[0] < nEntries;
+					})
+					.parallel("double", 2, () -> entry -> entry.doubled = entry.value * 2)
+					.metrics(new PipelineMetrics("PipelineTest"), entry -> 3)
+					.run();
+			recording.stop();
+			recording.dump(recorded.toPath());
+			
+			int nSource = 0;
+			int nDouble = 0;
+			for (RecordedEvent event : RecordingFile.readAllEvents(recorded.toPath())) {
+				if (event.getEventType().getName().equals("gbsTools.PipelineEntry")) {
+					assert event.getInt("records") == 3;
+					if (event.getString("stage").equals("source")) {
+						nSource++;
+					} else if (event.getString("stage").equals("double")) {
+						nDouble++;
+					}
+				}
+			}
+			assert nSource == nEntries;
+			assert nDouble == nEntries;
+		} finally {
+			recorded.delete();
+		}
+	}
+	
+	@Test
+	public void testBlockedNamesSlowThread() throws Exception {
+		int nEntries = 20;
+		int[] produced = new int[1];
+		File recorded = File.createTempFile("pipeline", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable(PipelineBlockedEvent.class);
+			recording.start();
+			new Pipeline<>(Entry::new, WaitStrategy.parking())
+					.source("source", entry -> {
+						entry.value = ++produced[0];
+						return produced[0] < nEntries;
+					})
+					.sink("slow", entry -> Thread.sleep(5))
+					.run();
+			recording.stop();
+			recording.dump(recorded.toPath());
+			
+			int nBlocked = 0;
+			for (RecordedEvent event : RecordingFile.readAllEvents(recorded.toPath())) {
+				if (event.getEventType().getName().equals("gbsTools.PipelineBlocked")) {
+					String stage = event.getString("stage");
+					String waitingOn = event.getString("waitingOn");
+					assert stage.equals("source");
+					assert waitingOn.equals("slow-0");
+					nBlocked++;
+				}
+			}
+			assert nBlocked > 0;
+		} finally {
+			recorded.delete();
+		}
+	}
+}
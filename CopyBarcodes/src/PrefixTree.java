@@ -1,20 +1,28 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class PrefixTree {
 	private static class Node {
 		// index by offset from 'A', which has an int value of 65
 		private final Node[] children = new Node[20];
-		private boolean isBarcode = false;
+		private int barcodeId = BarcodeMatcher.NO_MATCH;
 	}
 	
 	private final Node root = new Node();	
 	private final Set<String> overhangs = new HashSet<>();
+	private final Map<String, Integer> barcodeIds = new HashMap<>();
+	private final List<byte[]> barcodes = new ArrayList<>();
 	private final int MAX_BARCODE_LEN;
 	private final int OVERHANG_LEN;
 	private final char minQuality;
-	
-	private char[] fuzzyMatchStr;
+	private final String matcherType;
+	private CompiledBarcodeMatcher compiled = null;
+	private KmerBarcodeIndex kmerIndex = null;
 	
 	public PrefixTree(Config config) {
 		overhangs.addAll(config.getOverhangs());
@@ -22,7 +30,10 @@ public class PrefixTree {
 		checkOverhangsSameLength();
 		minQuality = config.getMinQuality();
 		MAX_BARCODE_LEN = 8 + OVERHANG_LEN;
-		fuzzyMatchStr = new char[MAX_BARCODE_LEN];
+		matcherType = config.getMatcher();
+		if (!matcherType.equals("compiled") && !matcherType.equals("kmer") && !matcherType.equals("tree")) {
+			throw new IllegalArgumentException("Unknown matcher " + matcherType + ", expected compiled, kmer or tree");
+		}
 	}
 
 	
@@ -35,118 +46,250 @@ public class PrefixTree {
 	}
 
 
-	public void addBarcode(String barcode) {
+	// barcodes are numbered in the order they're added, adding one again just returns its id
+	public int addBarcode(String barcode) {
+		Integer existing = barcodeIds.get(barcode);
+		if (existing != null) {
+			return existing;
+		}
+		int id = barcodes.size();
+		compiled = null;
+		kmerIndex = null;
+		barcodeIds.put(barcode, id);
+		barcodes.add(barcode.getBytes(StandardCharsets.US_ASCII));
 		for (String overhang : overhangs) {
-			addBarcodeRec(root, barcode + overhang, 0);
+			addBarcodeRec(root, barcode + overhang, 0, id);
 		}
+		return id;
 	}
 	
-	private void addBarcodeRec(Node node, String barcode, int pos) {
+	private void addBarcodeRec(Node node, String barcode, int pos, int id) {
 		if (pos == barcode.length()) {
-			node.isBarcode = true;
+			node.barcodeId = id;
 			return;
 		}
 		Node link = node.children[barcode.charAt(pos) - 65];
 		if (link != null) {
-			addBarcodeRec(link, barcode, pos + 1);
+			addBarcodeRec(link, barcode, pos + 1, id);
 			return;
 		}
 		// didn't find the next letter, add a new link
 		Node newChild = new Node();
 		node.children[barcode.charAt(pos) - 65] = newChild;
-		addBarcodeRec(newChild, barcode, pos + 1);
+		addBarcodeRec(newChild, barcode, pos + 1, id);
+	}
+	
+	public int getNumBarcodes() {
+		return barcodes.size();
+	}
+	
+	// the barcode's ASCII bytes - shared, so don't modify them
+	public byte[] getBarcode(int id) {
+		return barcodes.get(id);
+	}
+	
+	public int getBarcodeLen(int id) {
+		return barcodes.get(id).length;
 	}
 
 	public int findBarcodeLen(char[] read) {
-		int len = findBarcodeLenRec(root, read, 0);
-		return len == 0 ? len : len - 1 - OVERHANG_LEN; // trim overhang and an extra length for root
+		return findBarcodeLen(toBytes(read));
+	}
+
+	public int findBarcodeLen(byte[] read) {
+		int id = findBarcodeId(read);
+		return id == BarcodeMatcher.NO_MATCH ? 0 : getBarcodeLen(id);
 	}
 
-	private int findBarcodeLenRec(Node node, char[] read, int pos) {
-		if (node.isBarcode) {
-			return 1;
+	public int findBarcodeId(byte[] read) {
+		return findBarcodeId(read, 0);
+	}
+
+	// the exact match doesn't need any scratch space, so this is safe to call from any thread
+	public int findBarcodeId(byte[] read, int offset) {
+		Node node = root;
+		for (int pos = 0; node.barcodeId == BarcodeMatcher.NO_MATCH; pos++) {
+			if (pos == MAX_BARCODE_LEN) { // assume read length is always greater than 12
+				return BarcodeMatcher.NO_MATCH;
+			}
+			node = node.children[read[offset + pos] - 65];
+			if (node == null) {
+				return BarcodeMatcher.NO_MATCH;
+			}
 		}
-		if (pos == MAX_BARCODE_LEN) { // assume read length is always greater than 12
-			return 0; 
+		return node.barcodeId;
+	}
+	
+	public String fuzzyMatch(char[] read, char[] quality, OutputStats stats) {
+		return fuzzyMatch(toBytes(read), toBytes(quality), stats);
+	}
+
+	// convenience for one-off matches, anything matching in a loop should hold on to its own matcher
+	public String fuzzyMatch(byte[] read, byte[] quality, OutputStats stats) {
+		int id = newTreeMatcher().fuzzyMatchId(read, quality);
+		if (id >= 0) {
+			return new String(getBarcode(id), StandardCharsets.US_ASCII);
+		} else if (stats != null) {
+			countSkipReason(id, stats);
 		}
-		Node link = node.children[read[pos] - 65];
-		if (link != null) {
-			int len = findBarcodeLenRec(link, read, pos + 1);
-			if (len > 0) {
-				return len + 1;
+		return "";
+	}
+	
+	public static void countSkipReason(int reason, OutputStats stats) {
+		switch (reason) {
+		case BarcodeMatcher.SKIPPED_DUPLICATE:
+			stats.nSkippedDuplicate.getAndIncrement();
+			break;
+		case BarcodeMatcher.SKIPPED_QUALITY:
+			stats.nSkippedQuality.getAndIncrement();
+			break;
+		default:
+			stats.nSkippedMultipleBadReads.getAndIncrement();
+		}
+	}
+	
+	// the tree itself is read-only once the barcodes are loaded, so any number of threads can match against it,
+	// as long as each one uses its own matcher.
+	// Matchers (other than the tree one) work off a copy of the barcodes, so add all of them first
+	public BarcodeMatcher newMatcher() {
+		switch (matcherType) {
+		case "tree":
+			return newTreeMatcher();
+		case "kmer":
+			return newKmerMatcher();
+		default:
+			if (compiled == null) {
+				compiled = compile();
 			}
+			return compiled.newMatcher();
 		}
-		return 0; 
 	}
 	
-	private static class FuzzyMatchReason {
-		boolean highQuality = false;
-		boolean duplicate = false;
+	public BarcodeMatcher newKmerMatcher() {
+		if (kmerIndex == null) {
+			kmerIndex = new KmerBarcodeIndex(barcodes, overhangs, MAX_BARCODE_LEN, minQuality);
+		}
+		return kmerIndex.newMatcher();
 	}
 	
-	public String fuzzyMatch(char[] read, char[] quality, OutputStats stats) {
-		FuzzyMatchReason fuzzyMatchReason = new FuzzyMatchReason();
-		int len = fuzzyMatchRec(root, read, quality, 0, true, stats == null ? null : fuzzyMatchReason);
-		if (len > 0) {
-			return new String(fuzzyMatchStr, 0, len - 1 - OVERHANG_LEN);
-		} else if (stats != null) {
-			if (fuzzyMatchReason.duplicate) {
-				stats.nSkippedDuplicate.getAndIncrement();
-			} else if (fuzzyMatchReason.highQuality) {
-				stats.nSkippedQuality.getAndIncrement();
-			} else {
-				stats.nSkippedMultipleBadReads.getAndIncrement();
+	// walks the tree itself, mostly useful for checking the compiled matchers against
+	public BarcodeMatcher newTreeMatcher() {
+		return new TreeMatcher();
+	}
+	
+	private CompiledBarcodeMatcher compile() {
+		List<Node> states = new ArrayList<>();
+		numberStates(root, states);
+		int[] transitions = new int[states.size() * CompiledBarcodeMatcher.ALPHABET_SIZE];
+		int[] stateBarcodeIds = new int[states.size()];
+		Map<Node, Integer> stateIds = new HashMap<>();
+		for (int i = 0; i < states.size(); i++) {
+			stateIds.put(states.get(i), i);
+		}
+		for (int i = 0; i < states.size(); i++) {
+			Node node = states.get(i);
+			stateBarcodeIds[i] = node.barcodeId;
+			for (int symbol = 0; symbol < CompiledBarcodeMatcher.ALPHABET_SIZE; symbol++) {
+				Node child = node.children[CompiledBarcodeMatcher.ALPHABET.charAt(symbol) - 65];
+				transitions[i * CompiledBarcodeMatcher.ALPHABET_SIZE + symbol] = child == null ? -1 : stateIds.get(child);
 			}
 		}
-		return "";
+		int[] barcodeLens = new int[barcodes.size()];
+		for (int id = 0; id < barcodeLens.length; id++) {
+			barcodeLens[id] = getBarcodeLen(id);
+		}
+		return new CompiledBarcodeMatcher(transitions, stateBarcodeIds, barcodeLens, MAX_BARCODE_LEN, minQuality);
 	}
 	
-	private int fuzzyMatchRec(Node node, char[] read, char[] quality, int pos,
-			boolean fuzzyMatch, FuzzyMatchReason reason) {
-		if (node.isBarcode) {
-			return 1;
+	// depth first, so a barcode's states end up next to each other
+	private void numberStates(Node node, List<Node> states) {
+		states.add(node);
+		for (int i = 0; i < node.children.length; i++) {
+			if (node.children[i] != null) {
+				if (CompiledBarcodeMatcher.symbol(i + 65) < 0) {
+					throw new IllegalArgumentException("Barcodes and overhangs can only contain A, C, G, T and N, found "
+							+ (char) (i + 65));
+				}
+				numberStates(node.children[i], states);
+			}
 		}
-		if (pos == MAX_BARCODE_LEN) { // assume read length is always greater than 12
-			return 0; 
+	}
+	
+	private class TreeMatcher implements BarcodeMatcher {
+		// why the last fuzzy match failed
+		private boolean highQuality;
+		private boolean duplicate;
+
+		@Override
+		public int findBarcodeId(byte[] read, int offset) {
+			return PrefixTree.this.findBarcodeId(read, offset);
 		}
-		Node link = node.children[read[pos] - 65];
-		if (link != null) {
-			int len = fuzzyMatchRec(link, read, quality, pos + 1, fuzzyMatch, reason);
-			if (len > 0) {
-				fuzzyMatchStr[pos] = read[pos];
-				return len + 1;
+
+		@Override
+		public int fuzzyMatchId(byte[] read, int readOffset, byte[] quality, int qualityOffset) {
+			highQuality = false;
+			duplicate = false;
+			int id = fuzzyMatchRec(root, read, readOffset, quality, qualityOffset, 0, true);
+			if (id >= 0) {
+				return id;
+			} else if (duplicate) {
+				return SKIPPED_DUPLICATE;
+			} else if (highQuality) {
+				return SKIPPED_QUALITY;
 			}
+			return SKIPPED_MULTIPLE_BAD_READS;
 		}
-		// if we found no match, see if we're a suitable candidate for fuzzy matching
-		// require a unique match at the position to be a valid fuzzy match
-		// the exception to the 'unique match' is in the overhang - we don't actually
-		// care which overhang it is.
-		if (fuzzyMatch && quality[pos] < minQuality) {
-			int nBarcodesFound = 0;
-			int foundLen = 0;
-			char foundChar = ' ';
-			for (int i = 0; i < node.children.length; i++) {
-				if (node.children[i] != null) {
-					int len = fuzzyMatchRec(node.children[i], read, quality, pos + 1, false, reason);
-					if (len > 0) {
-						foundLen = len;
-						foundChar = (char) (i + 'A');
-						if (len > OVERHANG_LEN) {
-							nBarcodesFound++;
+	
+		private int fuzzyMatchRec(Node node, byte[] read, int readOffset, byte[] quality, int qualityOffset, int pos, 
+				boolean fuzzyMatch) {
+			if (node.barcodeId != NO_MATCH) {
+				return node.barcodeId;
+			}
+			if (pos == MAX_BARCODE_LEN) { // assume read length is always greater than 12
+				return NO_MATCH; 
+			}
+			Node link = node.children[read[readOffset + pos] - 65];
+			if (link != null) {
+				int id = fuzzyMatchRec(link, read, readOffset, quality, qualityOffset, pos + 1, fuzzyMatch);
+				if (id >= 0) {
+					return id;
+				}
+			}
+			// if we found no match, see if we're a suitable candidate for fuzzy matching
+			// require a unique match at the position to be a valid fuzzy match
+			// the exception to the 'unique match' is in the overhang - we don't actually
+			// care which overhang it is.
+			if (fuzzyMatch && quality[qualityOffset + pos] < minQuality) {
+				int nBarcodesFound = 0;
+				int foundId = NO_MATCH;
+				for (int i = 0; i < node.children.length; i++) {
+					if (node.children[i] != null) {
+						int id = fuzzyMatchRec(node.children[i], read, readOffset, quality, qualityOffset, pos + 1, false);
+						if (id >= 0) {
+							foundId = id;
+							if (pos < getBarcodeLen(id)) {
+								nBarcodesFound++;
+							}
 						}
 					}
 				}
+				if (nBarcodesFound <= 1 && foundId >= 0) {
+					return foundId;
+				} else if (nBarcodesFound > 1) {
+					duplicate = true;
+				}
+			} else if (quality[qualityOffset + pos] >= minQuality) {
+				highQuality = true;
 			}
-			if (nBarcodesFound <= 1 && foundLen > 0) {
-				fuzzyMatchStr[pos] = foundChar;
-				return foundLen + 1;
-			} else if (reason != null && nBarcodesFound > 1) {
-				reason.duplicate = true;
-			}
-		} else if (reason != null && quality[pos] >= minQuality) {
-			reason.highQuality = true;
+			return NO_MATCH; 
 		}
-		return 0; 
 	}
-	
+
+	private static byte[] toBytes(char[] chars) {
+		byte[] bytes = new byte[chars.length];
+		for (int i = 0; i < chars.length; i++) {
+			bytes[i] = (byte) chars[i];
+		}
+		return bytes;
+	}
 }
@@ -1,3 +1,7 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Test;
 
 public class PrefixTreeTest {
@@ -45,4 +49,51 @@ public class PrefixTreeTest {
 		assert match.equals("");
 		assert stats.nSkippedDuplicate.get() == 1;
 	}
+	
+	@Test
+	public void testMatchersAreIndependent() throws Exception {
+		PrefixTree tree = new PrefixTree(Config.loadOptions(new String[] {"default.config"}));
+		int shortId = tree.addBarcode("CGA");
+		int longId = tree.addBarcode("GCAGCAGC");
+		assert tree.addBarcode("CGA") == shortId;
+		byte[] quality = "FFFFFFFFFFFFFFF".getBytes();
+		byte[] shortRead = "CGTCAGCT".getBytes();
+		byte[] longRead = "GCAGCTGCCAGCT".getBytes();
+		
+		List<Thread> threads = new ArrayList<>();
+		AtomicInteger nWrong = new AtomicInteger();
+		for (int i = 0; i < 4; i++) {
+			BarcodeMatcher matcher = tree.newMatcher();
+			byte[] read = i % 2 == 0 ? shortRead : longRead;
+			int expected = i % 2 == 0 ? shortId : longId;
+			threads.add(new Thread(() -> {
+				for (int j = 0; j < 100_000; j++) {
+					if (matcher.fuzzyMatchId(read, quality) != expected) {
+						nWrong.incrementAndGet();
+					}
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assert nWrong.get() == 0;
+	}
+	
+	@Test
+	public void testSkipReasons() throws Exception {
+		PrefixTree tree = new PrefixTree(Config.loadOptions(new String[] {"default.config"}));
+		tree.addBarcode("CGA");
+		tree.addBarcode("GCA");
+		tree.addBarcode("GCT");
+		BarcodeMatcher matcher = tree.newMatcher();
+		
+		assert matcher.findBarcodeId("GCTCAGCT".getBytes()) == 2;
+		assert matcher.findBarcodeId("GCGCAGCT".getBytes()) == BarcodeMatcher.NO_MATCH;
+		assert matcher.fuzzyMatchId("CGTCAGCT".getBytes(), "FFFFFFFFFFF".getBytes()) == 0;
+		assert matcher.fuzzyMatchId("CGTCAGCT".getBytes(), "FFJFFFFFFFF".getBytes()) == BarcodeMatcher.SKIPPED_QUALITY;
+		assert matcher.fuzzyMatchId("GCGCAGCT".getBytes(), "FFFFFFFFFFF".getBytes()) == BarcodeMatcher.SKIPPED_DUPLICATE;
+		assert matcher.fuzzyMatchId("TTTCAGCT".getBytes(), "FFFFFFFFFFF".getBytes()) == BarcodeMatcher.SKIPPED_MULTIPLE_BAD_READS;
+	}
 }
@@ -2,5 +2,7 @@
 public interface ProgressTracker {
 	void noteProgress();
 	
+	void noteProgress(int nReads);
+	
 	void printProgress();
 }
@@ -1,8 +1,30 @@
+import java.nio.charset.StandardCharsets;
 
+// FASTQ is ASCII, so the lines are kept as the raw bytes read from the input. Rather than each read having arrays
+// of its own (sized for the longest line there could be), its eight lines - the forward read's header, sequence, 
+// separator and quality, then the reverse read's - are stretches of its batch's slab (see ReadBatch), so a read
+// only takes up as much memory as its lines, however long they are
 public class Read {
-	char[][] forwardLineSet = new char[4][CopyBarcodes.MAX_LINE_LEN];
-	char[][] reverseLineSet = new char[4][CopyBarcodes.MAX_LINE_LEN];
+	byte[] buf; // the slab holding the lines, shared with the rest of the batch
+	int[] lineStarts = new int[8];
 	int[] lineLens = new int[8];
+	boolean validHeader; // the forward and reverse headers agree, so the barcode is worth matching
+	// the matched barcode, as numbered by PrefixTree.addBarcode, or BarcodeMatcher.NO_MATCH if the read is skipped
+	int barcodeId = BarcodeMatcher.NO_MATCH;
 	int barcodeLen;
-	String fuzzedMatch = null;
-}
\ No newline at end of file
+	boolean fuzzed; // the read's barcode was off by one, so the forward read needs the barcode written over it
+	int sampleRank; // when downsampling, the read is in every subsample that keeps more than this percent
+	
+	// a read on its own, outside of any batch, with the given (four or eight) lines
+	static Read of(String... lines) {
+		ReadBatch batch = new ReadBatch(1);
+		Read read = batch.next();
+		for (int line = 0; line < lines.length; line++) {
+			byte[] bytes = lines[line].getBytes(StandardCharsets.US_ASCII);
+			read.lineStarts[line] = batch.append(bytes, 0, bytes.length);
+			read.lineLens[line] = bytes.length;
+		}
+		read.buf = batch.slab;
+		return read;
+	}
+}
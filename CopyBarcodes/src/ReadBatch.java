@@ -0,0 +1,78 @@
+import java.util.Arrays;
+
+// A batch of reads, handed from one stage of the pipeline to the next as a unit, so the stages only have to
+// synchronize once per batch instead of once per read. The batches (and the reads in them) are the entries of a RingBuffer.
+// The reads' lines are packed one after another into the batch's slab, which is reused from one batch to the next,
+// and only grows when the reads are longer than usual
+public class ReadBatch {
+	
+	static final int DEFAULT_SIZE = 1024;
+	// enough for a pair of 150 base reads with Illumina headers, longer ones make the slab grow
+	private static final int BYTES_PER_READ = 768;
+	// the matchers look up to a dozen bases into a sequence without checking its length, so there's always
+	// a little room past the last line
+	private static final int SLACK = 64;
+	
+	final Read[] reads;
+	int size = 0;
+	byte[] slab;
+	int slabSize = 0;
+	// where the last read that was kept ends in the slab
+	private int keptSize = 0;
+	
+	public ReadBatch() {
+		this(DEFAULT_SIZE);
+	}
+	
+	public ReadBatch(int capacity) {
+		reads = new Read[capacity];
+		for (int i = 0; i < capacity; i++) {
+			reads[i] = new Read();
+		}
+		slab = new byte[capacity * BYTES_PER_READ + SLACK];
+	}
+	
+	boolean isFull() {
+		return size == reads.length;
+	}
+	
+	void clear() {
+		size = 0;
+		slabSize = 0;
+		keptSize = 0;
+	}
+	
+	// the read to fill next - if the last one filled wasn't kept, its lines get overwritten
+	Read next() {
+		slabSize = keptSize;
+		return reads[size];
+	}
+	
+	// adds the read just filled to the batch
+	void keep() {
+		size++;
+		keptSize = slabSize;
+	}
+	
+	// the bytes of the kept reads' lines, to measure throughput with
+	int bytes() {
+		return keptSize;
+	}
+	
+	// makes room for another n bytes at the end of the slab. Reads filled before it grew keep pointing at the old
+	// slab, which still holds their lines
+	void reserve(int n) {
+		if (slabSize + n + SLACK > slab.length) {
+			slab = Arrays.copyOf(slab, Math.max(2 * slab.length, slabSize + n + SLACK));
+		}
+	}
+	
+	// copies len bytes of src to the end of the slab, returning where they start
+	int append(byte[] src, int off, int len) {
+		reserve(len);
+		int start = slabSize;
+		System.arraycopy(src, off, slab, start, len);
+		slabSize += len;
+		return start;
+	}
+}
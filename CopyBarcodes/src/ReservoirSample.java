@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.SplittableRandom;
+
+/**
+ * Picks exactly n reads out of a file, uniformly at random, in one pass over it without knowing how many reads 
+ * there are up front (reservoir sampling). Only the reads' positions in the file are kept, 8 bytes apiece and off 
+ * the heap, rather than the reads themselves; once they're sorted, RetainReservoirSample can copy the picked reads 
+ * out of the file (or its mate) in a second pass.
+ */
+public class ReservoirSample {
+	
+	// the largest direct buffer is 2GB
+	static final long MAX_READS = Integer.MAX_VALUE / Long.BYTES;
+	
+	/**
+	 * @param recordsPerRead 1, or 2 for interleaved files with both mates of a pair one after the other
+	 * @return the sorted (0 based) positions of the picked reads, or of every read if there are fewer than n
+	 */
+	public static LongBuffer sampleReads(String fileName, int recordsPerRead, long n, long seed) throws IOException {
+		if (n > MAX_READS) {
+			throw new IllegalArgumentException("Can only sample up to " + MAX_READS + " reads, got " + n);
+		}
+		LongBuffer reservoir = ByteBuffer.allocateDirect((int) n * Long.BYTES).asLongBuffer();
+		SplittableRandom random = new SplittableRandom(seed);
+		// only the records' positions are kept, so the same one-read batch is refilled every time
+		ReadBatch batch = new ReadBatch(1);
+		long nReads = 0;
+		try (ByteFastqReader in = new ByteFastqReader(ParallelGzipInputStream.open(fileName))) {
+			while (in.readRecord(batch, batch.next(), 0)) {
+				for (int i = 1; i < recordsPerRead; i++) {
+					in.readRecord(batch, batch.next(), 4);
+				}
+				if (nReads < n) {
+					reservoir.put((int) nReads, nReads);
+				} else {
+					// the read replaces one that's already been picked with probability n / (nReads + 1)
+					long replace = random.nextLong(nReads + 1);
+					if (replace < n) {
+						reservoir.put((int) replace, nReads);
+					}
+				}
+				nReads++;
+			}
+		}
+		reservoir.limit((int) Math.min(n, nReads));
+		sort(reservoir);
+		return reservoir;
+	}
+	
+	// heapsort, which sorts in place, so the positions never have to be copied onto the heap
+	static void sort(LongBuffer values) {
+		int len = values.limit();
+		for (int i = len / 2 - 1; i >= 0; i--) {
+			siftDown(values, i, len);
+		}
+		for (int end = len - 1; end > 0; end--) {
+			long max = values.get(0);
+			values.put(0, values.get(end));
+			values.put(end, max);
+			siftDown(values, 0, end);
+		}
+	}
+	
+	private static void siftDown(LongBuffer values, int i, int len) {
+		long value = values.get(i);
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= len) {
+				break;
+			}
+			if (child + 1 < len && values.get(child + 1) > values.get(child)) {
+				child++;
+			}
+			if (values.get(child) <= value) {
+				break;
+			}
+			values.put(i, values.get(child));
+			i = child;
+		}
+		values.put(i, value);
+	}
+}
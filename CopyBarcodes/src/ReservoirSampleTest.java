@@ -0,0 +1,64 @@
+import java.io.FileOutputStream;
+import java.nio.LongBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ReservoirSampleTest {
+	
+	@Test
+	public void testSort() {
+		Random random = new Random(3);
+		for (int len : new int[] {0, 1, 2, 7, 1000}) {
+			LongBuffer values = LongBuffer.allocate(len);
+			for (int i = 0; i < len; i++) {
+				values.put(i, random.nextInt(100));
+			}
+			ReservoirSample.sort(values);
+			for (int i = 1; i < len; i++) {
+				assert values.get(i - 1) <= values.get(i);
+			}
+		}
+	}
+	
+	@Test
+	public void testExactCount() throws Exception {
+		int nReads = 1000;
+		try (FastqWriter out = new FastqWriter(new ParallelGzipOutputStream(new FileOutputStream("reservoirTest.gz")))) {
+			for (int i = 0; i < nReads; i++) {
+				byte[] header = ("@read" + i).getBytes();
+				out.writeLine(header, 0, header.length);
+				out.writeLine("ACGT".getBytes(), 0, 4);
+				out.writeLine("+".getBytes(), 0, 1);
+				out.writeLine("FFFF".getBytes(), 0, 4);
+			}
+		}
+		
+		LongBuffer picked = ReservoirSample.sampleReads("reservoirTest.gz", 1, 100, 5);
+		assert picked.limit() == 100;
+		for (int i = 1; i < picked.limit(); i++) {
+			assert picked.get(i - 1) < picked.get(i);
+		}
+		// spread out over the whole file, not just the start
+		assert picked.get(picked.limit() - 1) > nReads / 2;
+		assert ReservoirSample.sampleReads("reservoirTest.gz", 1, 100, 5).equals(picked);
+		
+		// the retain behavior keeps exactly the picked reads
+		RetainBehavior retain = new RetainReservoirSample(picked);
+		int nKept = 0;
+		for (int i = 0; i < nReads; i++) {
+			if (retain.keepRead(null, 0)) {
+				assert picked.get(nKept) == i;
+				nKept++;
+			}
+		}
+		assert nKept == 100;
+		
+		// interleaved, and asking for more than there are
+		picked = ReservoirSample.sampleReads("reservoirTest.gz", 2, 1000, 5);
+		assert picked.limit() == nReads / 2;
+		for (int i = 0; i < picked.limit(); i++) {
+			assert picked.get(i) == i;
+		}
+	}
+}
@@ -1,6 +1,10 @@
-
 public interface RetainBehavior {
-  boolean keepRead();
+  // the header is the read's first line (starting with '@'), headerLen bytes of buf from headerStart
+  boolean keepRead(byte[] buf, int headerStart, int headerLen);
   
-  static RetainBehavior KEEP_ALL = () -> true;
+  default boolean keepRead(byte[] header, int headerLen) {
+    return keepRead(header, 0, headerLen);
+  }
+  
+  static RetainBehavior KEEP_ALL = (buf, headerStart, headerLen) -> true;
 }
@@ -1,12 +1,24 @@
-
 public interface RetainBehaviors {
   static RetainBehavior getRetainBehavior(int percentToKeep, long numReads, boolean truncate) {
+	  return getRetainBehavior(percentToKeep, numReads, truncate, false, 0);
+  }
+  
+  // byReadName takes precedence over truncate, since it's the only one that's consistent between mates
+  static RetainBehavior getRetainBehavior(int percentToKeep, long numReads, boolean truncate, boolean byReadName, 
+		  long seed) {
 	  if (percentToKeep == 100) {
 		  return RetainBehavior.KEEP_ALL;
+	  } else if (byReadName) {
+		  return new RetainByNameHash(percentToKeep, seed);
 	  } else if (truncate) {
 		  return new TruncateRetainBehavior(numReads * percentToKeep / 100);
 	  } else {
 		  return new RetainRandomSample(percentToKeep);
 	  }
   }
+  
+  static RetainBehavior getRetainBehavior(Config config, long numReads) {
+	  return getRetainBehavior(config.getPercentToRetain(), numReads, config.isRetainByTruncating(), 
+			  config.isRetainByReadName(), config.getRetainSeed());
+  }
 }
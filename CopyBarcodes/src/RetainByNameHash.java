@@ -0,0 +1,61 @@
+/**
+ * Keeps a read based on a seeded hash of its name, so the same read is kept or dropped no matter which file it's
+ * in, which thread is looking at it, or in what order: both mates of a pair always get the same answer, the files
+ * can be sampled separately (and at the same time), and the same seed gives the same sample every time.
+ * 
+ * The name is the header up to the first space, like Illumina's "@instrument:run:flowcell:lane:tile:x:y 1:N:0:...".
+ * If there's no space, it stops after those seven fields, and older "/1" and "/2" mate suffixes are ignored.
+ * Thread safe.
+ */
+public class RetainByNameHash implements RetainBehavior {
+	
+	private static final int NAME_FIELDS = 7;
+	
+	private final int percentToKeep;
+	private final long seed;
+	
+	public RetainByNameHash(int percentToKeep, long seed) {
+		this.percentToKeep = percentToKeep;
+		this.seed = seed;
+	}
+	
+	@Override
+	public boolean keepRead(byte[] buf, int headerStart, int headerLen) {
+		return rank(buf, headerStart, headerLen, seed) < percentToKeep;
+	}
+	
+	// from 0 to 99, the read is kept with any percentToKeep above this
+	static int rank(byte[] buf, int headerStart, int headerLen, long seed) {
+		return (int) Long.remainderUnsigned(hashName(buf, headerStart, headerLen, seed), 100);
+	}
+	
+	static long hashName(byte[] buf, int headerStart, int headerLen, long seed) {
+		int end = nameEnd(buf, headerStart, headerLen);
+		int start = end > headerStart && buf[headerStart] == '@' ? headerStart + 1 : headerStart;
+		// FNV-1a, with the seed mixed in up front and the bits spread out afterwards (splitmix64's finalizer), 
+		// since the names tend to only differ in their last few characters
+		long hash = 0xcbf29ce484222325L ^ seed;
+		for (int i = start; i < end; i++) {
+			hash ^= buf[i];
+			hash *= 0x100000001b3L;
+		}
+		hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+		hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+		return hash ^ (hash >>> 31);
+	}
+	
+	private static int nameEnd(byte[] buf, int headerStart, int headerLen) {
+		int nColons = 0;
+		int end = headerStart;
+		for (; end < headerStart + headerLen; end++) {
+			byte b = buf[end];
+			if (b == ' ' || b == '\t' || (b == ':' && ++nColons == NAME_FIELDS)) {
+				break;
+			}
+		}
+		if (end - headerStart >= 2 && buf[end - 2] == '/' && (buf[end - 1] == '1' || buf[end - 1] == '2')) {
+			end -= 2;
+		}
+		return end;
+	}
+}
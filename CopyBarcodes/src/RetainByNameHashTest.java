@@ -0,0 +1,46 @@
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class RetainByNameHashTest {
+	
+	@Test
+	public void testMatesAgree() {
+		RetainByNameHash retain = new RetainByNameHash(50, 42);
+		for (int i = 0; i < 1000; i++) {
+			String name = "@A00589:100:HLKHHDMXX:1:1101:" + i + ":1000";
+			boolean keep = keep(retain, name + " 1:N:0:GACTAGGAGC+TAGTACAGGC");
+			assert keep(retain, name + " 2:N:0:GACTAGGAGC+TAGTACAGGC") == keep;
+			assert keep(retain, name + ":1:N:0:GACTAGGAGC") == keep;
+			assert keep(retain, name + "/1") == keep;
+			assert keep(retain, name + "/2") == keep;
+		}
+	}
+	
+	@Test
+	public void testSeedAndPercent() {
+		RetainByNameHash retain = new RetainByNameHash(30, 1);
+		RetainByNameHash sameSeed = new RetainByNameHash(30, 1);
+		RetainByNameHash otherSeed = new RetainByNameHash(30, 2);
+		int nReads = 100_000;
+		int nKept = 0;
+		int nDifferent = 0;
+		for (int i = 0; i < nReads; i++) {
+			String header = "@A00589:100:HLKHHDMXX:2:" + (1101 + i % 7) + ":" + i + ":" + (i * 31 % 5000);
+			boolean keep = keep(retain, header);
+			assert keep(sameSeed, header) == keep;
+			nDifferent += keep(otherSeed, header) != keep ? 1 : 0;
+			nKept += keep ? 1 : 0;
+		}
+		assert Math.abs(nKept - nReads * 3 / 10) < nReads / 100;
+		assert nDifferent > nReads / 10;
+		
+		assert !keep(new RetainByNameHash(0, 1), "@A00589:100:HLKHHDMXX:2:1101:1:1");
+		assert keep(new RetainByNameHash(100, 1), "@A00589:100:HLKHHDMXX:2:1101:1:1");
+	}
+	
+	private boolean keep(RetainBehavior retain, String header) {
+		byte[] bytes = header.getBytes(StandardCharsets.US_ASCII);
+		return retain.keepRead(bytes, bytes.length);
+	}
+}
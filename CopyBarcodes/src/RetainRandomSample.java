@@ -1,7 +1,7 @@
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
+// ThreadLocalRandom rather than a shared Random, which every parsing thread would be fighting over
 public class RetainRandomSample implements RetainBehavior {
-	private final Random rand = new Random();
 	private final int percentToKeep;
 
 	public RetainRandomSample(int percentToKeep) {
@@ -9,7 +9,7 @@ public class RetainRandomSample implements RetainBehavior {
 	}
 
 	@Override
-	public boolean keepRead() {
-		return rand.nextInt(100) < percentToKeep;
+	public boolean keepRead(byte[] buf, int headerStart, int headerLen) {
+		return ThreadLocalRandom.current().nextInt(100) < percentToKeep;
 	}
 }
@@ -0,0 +1,24 @@
+import java.nio.LongBuffer;
+
+// Keeps the reads ReservoirSample picked, which have to be seen in the same order they were sampled in.
+// Not thread safe, and keeps track of its position in the file - every file needs its own.
+public class RetainReservoirSample implements RetainBehavior {
+	private final LongBuffer picked;
+	private long nReads = 0;
+	
+	public RetainReservoirSample(LongBuffer sortedReads) {
+		// shares the positions, but not the buffer's position
+		this.picked = sortedReads.duplicate();
+		this.picked.rewind();
+	}
+
+	@Override
+	public boolean keepRead(byte[] buf, int headerStart, int headerLen) {
+		long read = nReads++;
+		if (picked.hasRemaining() && picked.get(picked.position()) == read) {
+			picked.get();
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,236 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Supplier;
+
+/**
+ * A pre-allocated ring of entries shared by the stages of a pipeline, in the style of the LMAX Disruptor.
+ * One or more threads produce into it, and each stage after that follows the one before it around the ring.
+ * Every stage just publishes how far it's gotten in its own Sequence, so handing entries on
+ * doesn't take any locks, and the entries themselves are reused rather than passed through queues.
+ * 
+ * A stage is either a set of threads that share the work, each taking the next entry that's available
+ * (consumeShared), or a single thread that sees every entry (consume). The producer waits for the stages
+ * given to setGatingSequences (the last ones) before it reuses an entry.
+ * If any stage fails, every other stage stops waiting and throws instead, so nothing is left hanging.
+ * 
+ * With several producers, each one claims its entries from a shared counter, and they can publish out of order,
+ * so every entry gets a flag saying which lap of the ring it was last published on. The first stage only
+ * goes as far as the entries are published without gaps.
+ */
+public class RingBuffer<E> {
+	
+	public interface EntryHandler<E> {
+		void onEntry(E entry) throws Exception;
+	}
+	
+	// the stages a consumer has to wait for, as opposed to the ones it doesn't care about
+	public class Barrier {
+		private final Sequence[] dependents;
+		
+		// null if this is the first stage, which waits for the producers
+		private Barrier(Sequence[] dependents) {
+			this.dependents = dependents.length == 0 ? null : dependents;
+		}
+		
+		/**
+		 * Waits until sequence is available, and returns the last sequence that's available (entries can only be
+		 * processed up to that point), or -1 once the producer has finished and everything's been handed out.
+		 */
+		public long waitFor(long sequence) {
+			for (int counter = 0; ; counter++) {
+				checkFailure();
+				long last = end;
+				if (sequence > last) {
+					return -1;
+				}
+				long available = dependents == null ? getPublished(sequence) : Sequence.minimum(dependents, Long.MAX_VALUE);
+				if (available >= sequence) {
+					return Math.min(available, last);
+				}
+				waitStrategy.idle(counter);
+			}
+		}
+	}
+	
+	private final Object[] entries;
+	private final int mask;
+	private final WaitStrategy waitStrategy;
+	// how far the producer has published, or with several producers, how far they've claimed
+	private final Sequence cursor = new Sequence();
+	private Sequence[] gatingSequences = new Sequence[0];
+	private long nextSequence = 0; // only touched by a single producer
+	// only used with several producers: the lap of the ring each entry was last published on
+	private final AtomicIntegerArray published;
+	private final int lapShift;
+	private final AtomicInteger nProducersRunning;
+	private volatile long end = Long.MAX_VALUE;
+	private volatile Throwable failure = null;
+	
+	public RingBuffer(Supplier<E> factory, int size, WaitStrategy waitStrategy) {
+		this(factory, size, 1, waitStrategy);
+	}
+	
+	public RingBuffer(Supplier<E> factory, int size, int nProducers, WaitStrategy waitStrategy) {
+		if (Integer.bitCount(size) != 1) {
+			throw new IllegalArgumentException("Ring size must be a power of 2, got " + size);
+		}
+		entries = new Object[size];
+		for (int i = 0; i < size; i++) {
+			entries[i] = factory.get();
+		}
+		mask = size - 1;
+		this.waitStrategy = waitStrategy;
+		if (nProducers > 1) {
+			published = new AtomicIntegerArray(size);
+			for (int i = 0; i < size; i++) {
+				published.set(i, -1);
+			}
+			lapShift = Integer.numberOfTrailingZeros(size);
+			nProducersRunning = new AtomicInteger(nProducers);
+		} else {
+			published = null;
+			lapShift = 0;
+			nProducersRunning = null;
+		}
+	}
+	
+	public int size() {
+		return entries.length;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public E get(long sequence) {
+		return (E) entries[(int) sequence & mask];
+	}
+	
+	// the sequences of the last stages, which have to be done with an entry before the producer can reuse it
+	public void setGatingSequences(Sequence... sequences) {
+		gatingSequences = sequences;
+	}
+	
+	public Barrier newBarrier(Sequence... dependents) {
+		return new Barrier(dependents);
+	}
+	
+	// Producer only: claims the next entry, waiting until every stage is done with it
+	public long next() {
+		long sequence = published == null ? nextSequence++ : cursor.incrementAndGet();
+		long wrapPoint = sequence - entries.length;
+		for (int counter = 0; Sequence.minimum(gatingSequences, sequence) < wrapPoint; counter++) {
+			checkFailure();
+			waitStrategy.idle(counter);
+		}
+		return sequence;
+	}
+	
+	// Producer only: makes the claimed entry visible to the first stage
+	public void publish(long sequence) {
+		if (published == null) {
+			cursor.set(sequence);
+		} else {
+			published.lazySet((int) sequence & mask, (int) (sequence >>> lapShift));
+		}
+	}
+	
+	// the last entry the first stage can go up to, if sequence is the next one it wants
+	private long getPublished(long sequence) {
+		if (published == null) {
+			return cursor.get();
+		}
+		long claimed = cursor.get();
+		for (; sequence <= claimed; sequence++) {
+			if (published.get((int) sequence & mask) != (int) (sequence >>> lapShift)) {
+				break;
+			}
+		}
+		return sequence - 1;
+	}
+	
+	/**
+	 * Producer only: once this producer won't publish anything else. After the last producer is done, 
+	 * everything published so far is the end of the stream.
+	 */
+	public void finish() {
+		if (published == null || nProducersRunning.decrementAndGet() == 0) {
+			// with several producers, every entry claimed has been published by now
+			end = cursor.get();
+		}
+	}
+	
+	// stops every stage, to be rethrown from whatever they're waiting on
+	public synchronized void fail(Throwable t) {
+		if (failure == null) {
+			failure = t;
+		}
+	}
+	
+	// how many entries are in use: produced (or with several producers, claimed), but not done with by the last stages
+	public long getOccupancy() {
+		long produced = cursor.get();
+		return produced - Sequence.minimum(gatingSequences, produced);
+	}
+	
+	// which of the gating sequences is furthest behind, i.e. which of the last stages' threads the producer waits on
+	public int getSlowestGate() {
+		int slowest = 0;
+		for (int i = 1; i < gatingSequences.length; i++) {
+			if (gatingSequences[i].get() < gatingSequences[slowest].get()) {
+				slowest = i;
+			}
+		}
+		return slowest;
+	}
+	
+	// the first failure of any stage, if there was one
+	public Throwable getFailure() {
+		return failure;
+	}
+	
+	private void checkFailure() {
+		if (failure != null) {
+			throw new IllegalStateException("Another stage of the pipeline failed", failure);
+		}
+	}
+	
+	/**
+	 * Hands every entry to the handler, in order, until the end of the stream.
+	 * sequence tracks this consumer's progress, and shouldn't be shared.
+	 */
+	public void consume(Barrier barrier, Sequence sequence, EntryHandler<E> handler) throws Exception {
+		try {
+			long next = sequence.get() + 1;
+			long available;
+			while ((available = barrier.waitFor(next)) >= 0) {
+				for (; next <= available; next++) {
+					handler.onEntry(get(next));
+				}
+				sequence.set(available);
+			}
+		} catch (Exception | Error e) {
+			fail(e);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Takes turns with the other threads sharing workSequence, handing each entry to exactly one of them,
+	 * until the end of the stream. sequence tracks this thread's progress, and shouldn't be shared.
+	 */
+	public void consumeShared(Barrier barrier, Sequence workSequence, Sequence sequence, 
+			EntryHandler<E> handler) throws Exception {
+		try {
+			while (true) {
+				long next = workSequence.incrementAndGet();
+				// everything before this is either done, or held by another thread that's further behind
+				sequence.set(next - 1);
+				if (barrier.waitFor(next) < 0) {
+					return;
+				}
+				handler.onEntry(get(next));
+			}
+		} catch (Exception | Error e) {
+			fail(e);
+			throw e;
+		}
+	}
+}
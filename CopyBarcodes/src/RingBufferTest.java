@@ -0,0 +1,108 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+	
+	private static class Entry {
+		long value;
+		int timesProcessed;
+		long processedValue;
+	}
+	
+	@Test
+	public void testPipeline() throws Exception {
+		runPipeline(WaitStrategy.yielding(), 100_000);
+		runPipeline(WaitStrategy.parking(), 100_000);
+		// spinning threads only make progress when they get preempted if there are more of them than cores,
+		// so keep this one short for the sake of small build machines
+		runPipeline(WaitStrategy.busySpin(), 100);
+	}
+	
+	@Test
+	public void testFailureStopsEveryStage() throws Exception {
+		RingBuffer<Entry> ring = new RingBuffer<>(Entry::new, 8, WaitStrategy.parking());
+		Sequence consumed = new Sequence();
+		ring.setGatingSequences(consumed);
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		Future<?> consumer = exec.submit(() -> {
+			ring.consume(ring.newBarrier(), consumed, entry -> {
+				throw new IllegalArgumentException("bad entry");
+			});
+			return null;
+		});
+		try {
+			// the consumer never gets past the first entry, so the producer has to give up instead of waiting forever
+			for (int i = 0; i < 100; i++) {
+				ring.publish(ring.next());
+			}
+			assert false;
+		} catch (IllegalStateException e) {
+			assert e.getCause() instanceof IllegalArgumentException;
+		}
+		try {
+			consumer.get();
+			assert false;
+		} catch (ExecutionException e) {
+			assert e.getCause() instanceof IllegalArgumentException;
+		}
+		exec.shutdown();
+	}
+	
+	// one producer, three threads sharing the processing, and two writers that each see everything in order
+	private void runPipeline(WaitStrategy waitStrategy, int nEntries) throws Exception {
+		RingBuffer<Entry> ring = new RingBuffer<>(Entry::new, 16, waitStrategy);
+		Sequence workSequence = new Sequence();
+		Sequence[] processed = {new Sequence(), new Sequence(), new Sequence()};
+		Sequence[] written = {new Sequence(), new Sequence()};
+		ring.setGatingSequences(written);
+		RingBuffer<Entry>.Barrier published = ring.newBarrier();
+		RingBuffer<Entry>.Barrier processedBarrier = ring.newBarrier(processed);
+		
+		ExecutorService exec = Executors.newFixedThreadPool(processed.length + written.length);
+		List<Future<?>> stages = new ArrayList<>();
+		for (Sequence sequence : processed) {
+			stages.add(exec.submit(() -> {
+				ring.consumeShared(published, workSequence, sequence, entry -> {
+					entry.timesProcessed++;
+					entry.processedValue = entry.value * 2;
+				});
+				return null;
+			}));
+		}
+		long[] sums = new long[written.length];
+		for (int i = 0; i < written.length; i++) {
+			int writer = i;
+			stages.add(exec.submit(() -> {
+				long[] expected = {0};
+				ring.consume(processedBarrier, written[writer], entry -> {
+					assert entry.value == expected[0]++;
+					assert entry.timesProcessed == 1;
+					assert entry.processedValue == entry.value * 2;
+					sums[writer] += entry.processedValue;
+				});
+				return null;
+			}));
+		}
+		
+		for (long i = 0; i < nEntries; i++) {
+			long sequence = ring.next();
+			Entry entry = ring.get(sequence);
+			entry.value = i;
+			entry.timesProcessed = 0;
+			ring.publish(sequence);
+		}
+		ring.finish();
+		for (Future<?> stage : stages) {
+			stage.get();
+		}
+		exec.shutdown();
+		long expectedSum = (long) nEntries * (nEntries - 1);
+		assert sums[0] == expectedSum && sums[1] == expectedSum;
+	}
+}
@@ -0,0 +1,56 @@
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+// the value gets a cache line to itself (the padding has to be in separate classes, since the JVM is free
+// to reorder fields within a class), so threads updating neighboring sequences don't keep invalidating each other
+class SequenceLeftPadding {
+	protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+class SequenceValue extends SequenceLeftPadding {
+	protected volatile long value;
+}
+
+/**
+ * A position in a RingBuffer, owned by a single stage of the pipeline: how far the producer has published,
+ * or how far a consumer has gotten. Starts at -1, before the first entry.
+ */
+public class Sequence extends SequenceValue {
+	protected long p9, p10, p11, p12, p13, p14, p15;
+	
+	private static final AtomicLongFieldUpdater<SequenceValue> UPDATER = 
+			AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "value");
+	
+	public Sequence() {
+		this(-1);
+	}
+	
+	public Sequence(long initial) {
+		value = initial;
+	}
+	
+	public long get() {
+		return value;
+	}
+	
+	// an ordered write is enough for a single writer, and much cheaper than a full volatile write
+	public void set(long newValue) {
+		UPDATER.lazySet(this, newValue);
+	}
+	
+	public long incrementAndGet() {
+		return UPDATER.incrementAndGet(this);
+	}
+	
+	static long minimum(Sequence[] sequences, long ifEmpty) {
+		long min = ifEmpty;
+		for (Sequence sequence : sequences) {
+			min = Math.min(min, sequence.get());
+		}
+		return min;
+	}
+	
+	@Override
+	public String toString() {
+		return Long.toString(value);
+	}
+}
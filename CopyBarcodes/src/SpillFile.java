@@ -0,0 +1,85 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// The matched reads for a shard's samples, appended uncompressed to one file tagged with their barcode id, so the
+// first pass of a two-phase demultiplex only ever writes sequentially and never waits on compression.
+// replay() then writes them out to their samples.
+// Not thread safe - each shard has its own
+public class SpillFile implements Closeable {
+	
+	private static final int BUFFER_SIZE = 1 << 20;
+	
+	private final File file;
+	private final DataOutputStream out;
+	private long nRecords = 0;
+	
+	public SpillFile(File file) throws IOException {
+		this.file = file;
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+	}
+	
+	public void write(int barcodeId, Read read, int matchedLen) throws IOException {
+		out.writeInt(barcodeId);
+		out.writeInt(matchedLen);
+		for (int i = 0; i < 8; i++) {
+			out.writeInt(read.lineLens[i]);
+			out.write(read.buf, read.lineStarts[i], read.lineLens[i]);
+		}
+		nRecords++;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+	
+	// closes and deletes the spill file whether or not it's been replayed, so a run that fails part way doesn't
+	// leave its reads behind
+	public void delete() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			// it's being thrown away anyway
+		}
+		file.delete();
+	}
+	
+	/**
+	 * Writes every record back out to its sample's output (indexed by barcode id), in the order they were spilled,
+	 * and deletes the spill file. Must be closed first.
+	 */
+	public void replay(OutputFile[] outputs, OutputFilePool pool) throws IOException {
+		// every record is written out before the next one's read, so a one-read batch is reused for all of them
+		ReadBatch batch = new ReadBatch(1);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+			for (long n = 0; n < nRecords; n++) {
+				int barcodeId = in.readInt();
+				int matchedLen = in.readInt();
+				batch.clear();
+				Read read = batch.next();
+				for (int i = 0; i < 8; i++) {
+					readLine(in, batch, read, i);
+				}
+				read.buf = batch.slab;
+				pool.write(outputs[barcodeId], read, matchedLen);
+			}
+		}
+		file.delete();
+	}
+	
+	private void readLine(DataInputStream in, ReadBatch batch, Read read, int line) throws IOException {
+		int len = in.readInt();
+		batch.reserve(len);
+		in.readFully(batch.slab, batch.slabSize, len);
+		read.lineStarts[line] = batch.slabSize;
+		read.lineLens[line] = len;
+		batch.slabSize += len;
+	}
+}
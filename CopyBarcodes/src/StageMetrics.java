@@ -0,0 +1,160 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for one stage of a Pipeline. They're only updated once per entry (usually a whole batch of reads), 
+ * and LongAdders don't make the stage's threads fight over a cache line, so they cost next to nothing.
+ * 
+ * Busy is the time spent working on entries, blocked is the time spent waiting on the stages after this one
+ * (a source waiting for room in the ring, or the read-ahead threads waiting for the parser to take their buffers),
+ * and waiting is the time spent waiting on the stage before (for the next entry, or a writer waiting on its
+ * compressors). Whatever's left over is time the stage's threads weren't asked to do anything.
+ * Bytes are whatever the stage moves along: the reads' lines for the ring's stages, inflated bytes for the
+ * input, uncompressed bytes for the compressors, and compressed ones for the disk.
+ */
+public class StageMetrics implements StageMetricsMXBean {
+	
+	private final PipelineMetrics pipeline;
+	private final String name;
+	private final int nThreads;
+	private final LongAdder entries = new LongAdder();
+	private final LongAdder records = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder busyNanos = new LongAdder();
+	private final LongAdder blockedNanos = new LongAdder();
+	private final LongAdder waitingNanos = new LongAdder();
+	// how long each entry took, by powers of 2 of nanoseconds
+	private final AtomicLongArray entryNanos = new AtomicLongArray(64);
+	
+	StageMetrics(PipelineMetrics pipeline, String name, int nThreads) {
+		this.pipeline = pipeline;
+		this.name = name;
+		this.nThreads = nThreads;
+	}
+	
+	void recordEntry(long nanos, int nRecords) {
+		recordEntry(nanos, nRecords, 0);
+	}
+	
+	void recordEntry(long nanos, int nRecords, long nBytes) {
+		entries.increment();
+		records.add(nRecords);
+		bytes.add(nBytes);
+		busyNanos.add(nanos);
+		entryNanos.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(1, nanos)));
+	}
+	
+	void recordBlocked(long nanos) {
+		blockedNanos.add(nanos);
+	}
+	
+	void recordWaiting(long nanos) {
+		waitingNanos.add(nanos);
+	}
+	
+	@Override
+	public String getName() {
+		return name;
+	}
+	
+	@Override
+	public int getThreads() {
+		return nThreads;
+	}
+	
+	@Override
+	public long getEntries() {
+		return entries.sum();
+	}
+	
+	@Override
+	public long getRecords() {
+		return records.sum();
+	}
+	
+	@Override
+	public double getRecordsPerSecond() {
+		return records.sum() / Math.max(1e-3, pipeline.getElapsedSeconds());
+	}
+	
+	@Override
+	public long getBytes() {
+		return bytes.sum();
+	}
+	
+	@Override
+	public double getMBPerSecond() {
+		return bytes.sum() / (1024.0 * 1024) / Math.max(1e-3, pipeline.getElapsedSeconds());
+	}
+	
+	@Override
+	public double getBusyPercent() {
+		return percentOfThreadTime(busyNanos.sum());
+	}
+	
+	@Override
+	public double getBlockedPercent() {
+		return percentOfThreadTime(blockedNanos.sum());
+	}
+	
+	@Override
+	public double getWaitingPercent() {
+		return percentOfThreadTime(waitingNanos.sum());
+	}
+	
+	private double percentOfThreadTime(long nanos) {
+		double threadNanos = pipeline.getElapsedSeconds() * 1e9 * nThreads;
+		return threadNanos <= 0 ? 0 : Math.min(100, nanos * 100 / threadNanos);
+	}
+	
+	@Override
+	public long getMedianEntryMicros() {
+		return entryPercentile(0.5) / 1000;
+	}
+	
+	@Override
+	public long getP99EntryMicros() {
+		return entryPercentile(0.99) / 1000;
+	}
+	
+	// the upper bound of the histogram bucket the percentile falls in
+	long entryPercentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < entryNanos.length(); i++) {
+			total += entryNanos.get(i);
+		}
+		long rank = (long) Math.ceil(total * percentile);
+		long seen = 0;
+		for (int i = 0; i < entryNanos.length(); i++) {
+			seen += entryNanos.get(i);
+			if (seen >= rank && seen > 0) {
+				return i >= 62 ? Long.MAX_VALUE : (2L << i) - 1;
+			}
+		}
+		return 0;
+	}
+	
+	void appendJson(StringBuilder json) {
+		json.append("{\"name\": \"").append(name).append('"')
+				.append(", \"threads\": ").append(nThreads)
+				.append(", \"entries\": ").append(getEntries())
+				.append(", \"records\": ").append(getRecords())
+				.append(", \"recordsPerSecond\": ").append(Math.round(getRecordsPerSecond()))
+				.append(", \"bytes\": ").append(getBytes())
+				.append(", \"MBPerSecond\": ").append(Math.round(getMBPerSecond() * 10) / 10.0)
+				.append(", \"busyPercent\": ").append(Math.round(getBusyPercent() * 10) / 10.0)
+				.append(", \"blockedPercent\": ").append(Math.round(getBlockedPercent() * 10) / 10.0)
+				.append(", \"waitingPercent\": ").append(Math.round(getWaitingPercent() * 10) / 10.0)
+				.append(", \"medianEntryMicros\": ").append(getMedianEntryMicros())
+				.append(", \"p99EntryMicros\": ").append(getP99EntryMicros())
+				.append(", \"entryNanosLog2Histogram\": [");
+		int last = entryNanos.length() - 1;
+		while (last > 0 && entryNanos.get(last) == 0) {
+			last--;
+		}
+		for (int i = 0; i <= last; i++) {
+			json.append(i == 0 ? "" : ", ").append(entryNanos.get(i));
+		}
+		json.append("]}");
+	}
+}
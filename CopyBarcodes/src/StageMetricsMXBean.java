@@ -0,0 +1,27 @@
+
+// what JMX shows for each stage of a pipeline (see StageMetrics)
+public interface StageMetricsMXBean {
+	String getName();
+	
+	int getThreads();
+	
+	long getEntries();
+	
+	long getRecords();
+	
+	double getRecordsPerSecond();
+	
+	long getBytes();
+	
+	double getMBPerSecond();
+	
+	double getBusyPercent();
+	
+	double getBlockedPercent();
+	
+	double getWaitingPercent();
+	
+	long getMedianEntryMicros();
+	
+	long getP99EntryMicros();
+}
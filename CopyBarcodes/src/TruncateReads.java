@@ -1,13 +1,6 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 public class TruncateReads {
 
@@ -20,29 +13,45 @@ public class TruncateReads {
 		
 		TruncateReadsConfig config = TruncateReadsConfig.loadOptions(args);
 		for (File f : config.getFiles()) {
-			truncateRead(f, config.getReadLength());
+			truncateRead(f, config.getReadLength(), config.isDiscardOutput());
 		}
 		
 		System.out.println("Truncated " + config.getFiles().size() + " files.");
 	}
 
-	private static void truncateRead(File f, int maxReadLength) throws IOException {
+	private static void truncateRead(File f, int maxReadLength, boolean discardOutput) throws IOException {
 		String outFile = f.getCanonicalPath().substring(0, f.getCanonicalPath().lastIndexOf(".")) + ".truncated.gz";
-		try (BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(f))));
-				BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(outFile))))) {
-			String line;
-			int i = 0;
-			while ((line = in.readLine()) != null) {
-				if (i % 2 == 1 && line.length() > maxReadLength) {
-					line = line.substring(0, maxReadLength);
-				}
-				out.write(line);
-				out.newLine();
-				i++;
-				i = i % 4;
-			}
-		} catch (IOException e) {
+		try (ByteFastqReader in = new ByteFastqReader(ParallelGzipInputStream.open(f.getPath()));
+				FastqWriter out = new FastqWriter(discardOutput ? new DiscardingOutputStream()
+						: new ParallelGzipOutputStream(new FileOutputStream(outFile)))) {
+			// one parser and one writer, so there's little to gain from spinning; there's no option for it
+			new Pipeline<>(ReadBatch::new, WaitStrategy.parking())
+					.source("parser", batch -> readBatch(in, batch))
+					.sink("writer", batch -> {
+						for (int i = 0; i < batch.size; i++) {
+							Read read = batch.reads[i];
+							// sequence and quality lines
+							read.lineLens[1] = Math.min(read.lineLens[1], maxReadLength);
+							read.lineLens[3] = Math.min(read.lineLens[3], maxReadLength);
+							out.writeRecord(read, 0);
+						}
+					})
+					.run();
+		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
+	
+	// Fills the batch with the next records, returning false once the input runs out
+	private static boolean readBatch(ByteFastqReader in, ReadBatch batch) throws IOException {
+		batch.clear();
+		while (!batch.isFull()) {
+			Read read = batch.next();
+			if (!in.readRecord(batch, read, 0)) {
+				return false;
+			}
+			batch.keep();
+		}
+		return true;
+	}
 }
@@ -13,8 +13,13 @@ import java.util.Map;
  * directory=<path to directory, where all files should be truncated>
  * max_read_length=<maximum length of the read to keep>
  * barcode_length=<length of the barcode prepended to the reads>
+ * discard_output=<true|false, throw the output away instead of writing it, to measure how fast the rest is (default false)>
  * 
- * All argument must be specific, except for file and directory - exactly one of those must be specified
+ * All argument must be specific, except for file and directory (exactly one of those must be specified)
+ * and discard_output
+ * 
+ * Unlike the tools configured through Config, there is no waitStrategy: the pipeline threads always park while
+ * waiting on each other.
  * 
  * This assumes that each read is in the format
  * <header line>
@@ -29,11 +34,17 @@ public class TruncateReadsConfig {
 	private final String file;
 	private final String directory;
 	private final int readLength;
+	private final boolean discardOutput;
 
 	public TruncateReadsConfig(String file, String directory, int readLength) {
+		this(file, directory, readLength, false);
+	}
+
+	public TruncateReadsConfig(String file, String directory, int readLength, boolean discardOutput) {
 		this.file = file;
 		this.directory = directory;
 		this.readLength = readLength;
+		this.discardOutput = discardOutput;
 		if (!(file.length() > 0 ^ directory.length() > 0)) {
 			throw new IllegalArgumentException("Exactly one of file, directory must be specified");
 		}
@@ -54,7 +65,8 @@ public class TruncateReadsConfig {
 
 		return new TruncateReadsConfig(properties.getOrDefault("file", ""), 
 				properties.getOrDefault("directory", ""),
-				Integer.parseInt(properties.getOrDefault("max_read_length", "0")) + Integer.parseInt(properties.getOrDefault("barcode_length",  "0")));
+				Integer.parseInt(properties.getOrDefault("max_read_length", "0")) + Integer.parseInt(properties.getOrDefault("barcode_length",  "0")),
+				Boolean.parseBoolean(properties.getOrDefault("discard_output", "false")));
 	}
 	
 	private static void loadFromFile(String file, Map<String, String> props) throws IOException {
@@ -89,4 +101,8 @@ public class TruncateReadsConfig {
 		return readLength;
 	}
 
+	public boolean isDiscardOutput() {
+		return discardOutput;
+	}
+
 }
@@ -9,7 +9,7 @@ public class TruncateRetainBehavior implements RetainBehavior {
 	}
 
 	@Override
-	public boolean keepRead() {
+	public boolean keepRead(byte[] buf, int headerStart, int headerLen) {
 		numReads++;
 		return numReads < numReadsToKeep;
 	}
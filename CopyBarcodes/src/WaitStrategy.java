@@ -0,0 +1,47 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What a RingBuffer stage does while the stage it depends on hasn't caught up yet.
+ * Spinning reacts fastest but keeps a core busy the whole time, parking frees the core up for other
+ * jobs on a shared node at the cost of a little latency.
+ */
+public interface WaitStrategy {
+	
+	// called repeatedly until the wait is over, with the number of times it's already been called for this wait
+	void idle(int counter);
+	
+	static WaitStrategy busySpin() {
+		return counter -> { };
+	}
+	
+	static WaitStrategy yielding() {
+		return counter -> {
+			if (counter > 100) {
+				Thread.yield();
+			}
+		};
+	}
+	
+	static WaitStrategy parking() {
+		return counter -> {
+			if (counter > 200) {
+				LockSupport.parkNanos(100_000);
+			} else if (counter > 100) {
+				Thread.yield();
+			}
+		};
+	}
+	
+	static WaitStrategy forName(String name) {
+		switch (name) {
+		case "spin":
+			return busySpin();
+		case "yield":
+			return yielding();
+		case "park":
+			return parking();
+		default:
+			throw new IllegalArgumentException("Unknown wait strategy " + name + ", expected spin, yield or park");
+		}
+	}
+}